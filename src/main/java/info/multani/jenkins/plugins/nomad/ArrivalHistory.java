@@ -0,0 +1,108 @@
+package info.multani.jenkins.plugins.nomad;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number of items which entered the queue for a label, over the last
+ * buckets of time.
+ *
+ * The counts are kept in a ring buffer: recording an arrival and forecasting
+ * only cost a few operations on a small array, whatever the arrival rate.
+ */
+class ArrivalHistory {
+
+    /**
+     * The duration of a bucket.
+     */
+    static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The smoothing factor of the level of the arrival rate.
+     */
+    private static final double ALPHA = 0.5;
+
+    /**
+     * The smoothing factor of the trend of the arrival rate.
+     */
+    private static final double BETA = 0.3;
+
+    private final int[] counts;
+
+    /**
+     * The number of the bucket the last arrival was recorded in, counted from
+     * the epoch.
+     */
+    private long last;
+
+    ArrivalHistory(int buckets) {
+        this.counts = new int[buckets];
+    }
+
+    /**
+     * Records an arrival.
+     *
+     * @param now the time of the arrival, in milliseconds
+     */
+    synchronized void record(long now) {
+        advance(now / BUCKET_MILLIS);
+        counts[(int) (last % counts.length)]++;
+    }
+
+    /**
+     * Forecasts the number of arrivals in the next buckets, using double
+     * exponential smoothing of the complete buckets.
+     *
+     * @param now the current time, in milliseconds
+     * @param horizon the number of buckets to forecast
+     * @return the expected number of arrivals over the horizon.
+     */
+    synchronized double forecast(long now, int horizon) {
+        advance(now / BUCKET_MILLIS);
+
+        // From the oldest to the last complete bucket
+        double level = counts[(int) ((last + 1) % counts.length)];
+        double trend = 0;
+        for (int i = 2; i < counts.length; i++) {
+            double count = counts[(int) ((last + i) % counts.length)];
+            double previous = level;
+            level = ALPHA * count + (1 - ALPHA) * (level + trend);
+            trend = BETA * (level - previous) + (1 - BETA) * trend;
+        }
+
+        double total = 0;
+        for (int h = 1; h <= horizon; h++) {
+            total += Math.max(0, level + h * trend);
+        }
+        return total;
+    }
+
+    /**
+     * Returns whether no arrival has been recorded in any bucket.
+     *
+     * @param now the current time, in milliseconds
+     * @return true if the history is empty.
+     */
+    synchronized boolean isEmpty(long now) {
+        advance(now / BUCKET_MILLIS);
+        for (int count : counts) {
+            if (count > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clears the buckets elapsed since the last arrival.
+     */
+    private void advance(long bucket) {
+        if (bucket <= last) {
+            return;
+        }
+        long elapsed = Math.min(bucket - last, counts.length);
+        for (long i = 1; i <= elapsed; i++) {
+            counts[(int) ((last + i) % counts.length)] = 0;
+        }
+        last = bucket;
+    }
+}
@@ -0,0 +1,63 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * Plans several agents from the same template in a single pass.
+ *
+ * The agents and their Nomad jobs are all prepared up front, and the planned
+ * nodes are returned already completed, so they are all added to Jenkins at
+ * once. Their jobs are then registered concurrently by the launchers, at most
+ * {@link NomadCloud#getMaxRequestsPerHost()} at a time.
+ */
+class BatchProvisioner {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchProvisioner.class.getName());
+
+    private BatchProvisioner() {
+    }
+
+    /**
+     * Prepares the agents and their Nomad jobs.
+     *
+     * @param cloud the cloud to provision the agents in
+     * @param template the template to create the agents from
+     * @param count the number of agents to provision, for which a slot has
+     * already been reserved
+     * @return the planned nodes, already completed.
+     */
+    @Nonnull
+    static List<NodeProvisioner.PlannedNode> plan(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template,
+            int count) {
+        List<NodeProvisioner.PlannedNode> planned = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                NomadLauncher launcher = new NomadLauncher();
+                NomadSlave slave = NomadSlave
+                        .builder()
+                        .jobTemplate(template)
+                        .cloud(cloud)
+                        .computerLauncher(launcher)
+                        .build();
+                launcher.setJob(template.build(slave));
+                planned.add(new NodeProvisioner.PlannedNode(template.getDisplayName(),
+                        CompletableFuture.<Node>completedFuture(slave), 1));
+            } catch (IOException | Descriptor.FormException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, String.format("Unable to prepare agent from template %s", template.getName()), e);
+                cloud.getJobCounter().release(template);
+            }
+        }
+        LOGGER.log(Level.FINE, "Prepared {0} agents from template {1}",
+                new Object[]{planned.size(), template.getName()});
+        return planned;
+    }
+}
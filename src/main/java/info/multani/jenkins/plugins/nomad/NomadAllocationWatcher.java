@@ -0,0 +1,345 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.TaskEvent;
+import com.hashicorp.nomad.apimodel.TaskState;
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Follows the allocations of the Nomad jobs started by a {@link NomadCloud}.
+ *
+ * A single thread per cloud follows the allocations through one Nomad blocking
+ * query: each request carries the index returned by the previous one, so the
+ * server only answers once an allocation has changed, or the wait has elapsed.
+ * The answer is filtered down to the jobs being launched, and the launchers
+ * get a future per job, completed as soon as the newest allocation of the job
+ * is running, or has failed.
+ *
+ * The thread only runs while there are jobs to follow.
+ */
+class NomadAllocationWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadAllocationWatcher.class.getName());
+
+    /**
+     * Maximum time to wait before querying Nomad again after an error.
+     */
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How long, in seconds, Nomad waits for a change before answering a
+     * blocking query.
+     */
+    private static final long WAIT = 60;
+
+    /**
+     * The state of the newest allocation of a Nomad job, as seen by Jenkins.
+     */
+    enum Status {
+        PENDING, RUNNING, FAILED
+    }
+
+    private final NomadCloud cloud;
+
+    /**
+     * The jobs being followed, indexed by Nomad job ID, or by job ID and task
+     * group.
+     */
+    private final ConcurrentMap<String, CompletableFuture<AllocationListStub>> watched = new ConcurrentHashMap<>();
+
+    /**
+     * The newest allocation of each job and of each task group, as of the last
+     * answer from Nomad.
+     */
+    private volatile Map<String, AllocationListStub> lastSeen = Collections.emptyMap();
+
+    /**
+     * The thread following the allocations, if any; guarded by {@code this}.
+     */
+    private Thread thread;
+
+    NomadAllocationWatcher(@Nonnull NomadCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Starts following the allocations of a Nomad job.
+     *
+     * @param jobID the ID of the Nomad job
+     * @return a future completed with the allocation of the job once it's
+     * running, or completed exceptionally if the allocation failed. Cancel it
+     * to stop following the job.
+     */
+    @Nonnull
+    CompletableFuture<AllocationListStub> watch(@Nonnull String jobID) {
+        return watch(jobID, null);
+    }
+
+    /**
+     * Starts following the allocations of a task group of a Nomad job.
+     *
+     * @param jobID the ID of the Nomad job
+     * @param taskGroup the name of the task group to follow, or null to follow
+     * the newest allocation of the whole job
+     * @return a future completed with the allocation of the task group once
+     * it's running, or completed exceptionally if the allocation failed.
+     * Cancel it to stop following the task group.
+     */
+    @Nonnull
+    CompletableFuture<AllocationListStub> watch(@Nonnull String jobID, @CheckForNull String taskGroup) {
+        String key = key(jobID, taskGroup);
+        CompletableFuture<AllocationListStub> future = watched.computeIfAbsent(key, id -> new CompletableFuture<>());
+        future.whenComplete((alloc, error) -> watched.remove(key, future));
+
+        // The allocation may already have changed before the job was watched.
+        AllocationListStub alloc = lastSeen.get(key);
+        if (alloc != null) {
+            update(jobID, alloc, future);
+        }
+
+        start();
+        return future;
+    }
+
+    private synchronized void start() {
+        if (thread != null || watched.isEmpty()) {
+            return;
+        }
+        thread = new Thread(this::run, "Nomad allocation watcher for " + cloud.name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized boolean shouldStop() {
+        if (watched.isEmpty()) {
+            thread = null;
+            return true;
+        }
+        return false;
+    }
+
+    private void run() {
+        LOGGER.log(Level.FINE, "Starting to follow the allocations of cloud {0}", cloud.name);
+        BigInteger index = null;
+        long backoff = 0;
+
+        try {
+            while (!shouldStop()) {
+                try {
+                    QueryOptions<List<AllocationListStub>> options = new QueryOptions<>();
+                    if (index != null) {
+                        // Block until an allocation changes
+                        options.setIndex(index);
+                        options.setWaitStrategy(new NomadFixedWait(WAIT));
+                    }
+
+                    // The SDK's HTTP client has no read timeout: the request
+                    // holds one of the shared connections for the wait, at
+                    // most.
+                    ServerQueryResponse<List<AllocationListStub>> response = cloud.connect()
+                            .getAllocationsApi().list(null, options);
+                    index = response.getIndex();
+                    update(response.getValue());
+                    backoff = 0;
+                } catch (IOException | NomadException e) {
+                    backoff = Math.min(MAX_BACKOFF, Math.max(1000, backoff * 2));
+                    LOGGER.log(Level.WARNING, String.format("Unable to follow the allocations of cloud %s, retrying in %d ms",
+                            cloud.name, backoff), e);
+                    index = null;
+                    Thread.sleep(backoff);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while following the allocations of cloud {0}", cloud.name);
+            synchronized (this) {
+                thread = null;
+            }
+            watched.values().forEach(future -> future.completeExceptionally(e));
+        } finally {
+            LOGGER.log(Level.FINE, "Stopped following the allocations of cloud {0}", cloud.name);
+        }
+    }
+
+    private void update(@CheckForNull List<AllocationListStub> allocations) {
+        Set<String> jobs = new HashSet<>();
+        for (String key : watched.keySet()) {
+            int separator = key.indexOf('\0');
+            jobs.add(separator < 0 ? key : key.substring(0, separator));
+        }
+
+        Map<String, AllocationListStub> newest = new HashMap<>();
+        if (allocations != null) {
+            for (AllocationListStub alloc : allocations) {
+                if (!"run".equals(alloc.getDesiredStatus()) && !jobs.contains(alloc.getJobId())) {
+                    // Stopped allocations of the rest of the cluster: the
+                    // jobs being launched are all meant to run
+                    continue;
+                }
+                newest.merge(key(alloc.getJobId(), null), alloc, NomadAllocationWatcher::newest);
+                newest.merge(key(alloc.getJobId(), alloc.getTaskGroup()), alloc, NomadAllocationWatcher::newest);
+            }
+        }
+        lastSeen = newest;
+
+        watched.forEach((key, future) -> {
+            AllocationListStub alloc = newest.get(key);
+            if (alloc != null) {
+                update(alloc.getJobId(), alloc, future);
+            }
+        });
+    }
+
+    private static String key(String jobID, @CheckForNull String taskGroup) {
+        // Nomad doesn't allow null characters in job IDs
+        return taskGroup == null ? jobID : jobID + '\0' + taskGroup;
+    }
+
+    private static AllocationListStub newest(AllocationListStub a, AllocationListStub b) {
+        return NEWEST_FIRST.compare(a, b) <= 0 ? a : b;
+    }
+
+    private void update(String jobID, AllocationListStub alloc, CompletableFuture<AllocationListStub> future) {
+        LOGGER.log(Level.FINE, "Checking status of allocation {0} for Nomad job {1} (status={2})",
+                new Object[]{alloc.getId(), jobID, alloc.getClientStatus()});
+
+        switch (statusOf(alloc)) {
+            case RUNNING:
+                future.complete(alloc);
+                break;
+            case FAILED:
+                future.completeExceptionally(failureOf(jobID, alloc));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The types of the task events telling that a task can't be started.
+     */
+    private static final Set<String> FAILURE_EVENTS = new HashSet<>(Arrays.asList(
+            "Driver Failure", "Failed Artifact Download", "Setup Failure", "Failed Validation"));
+
+    /**
+     * Sorts the allocations by greater CreateIndex first: this should be the
+     * last allocation created for a Nomad job.
+     */
+    private static final Comparator<AllocationListStub> NEWEST_FIRST
+            = Comparator.comparing(AllocationListStub::getCreateIndex).reversed();
+
+    /**
+     * Computes the status of an allocation from its client status and the
+     * state of its tasks.
+     *
+     * @param alloc the allocation to check
+     * @return {@link Status#RUNNING} if all the tasks are running,
+     * {@link Status#FAILED} if the allocation is failed or lost or if one of
+     * its tasks died or can't be started, {@link Status#PENDING} otherwise.
+     */
+    @Nonnull
+    static Status statusOf(@Nonnull AllocationListStub alloc) {
+        if ("failed".equals(alloc.getClientStatus()) || "lost".equals(alloc.getClientStatus())) {
+            return Status.FAILED;
+        }
+
+        Map<String, TaskState> taskStates = alloc.getTaskStates();
+        if (taskStates == null || taskStates.isEmpty()) {
+            return Status.PENDING;
+        }
+
+        boolean allTasksAreRunning = true;
+        for (TaskState taskState : taskStates.values()) {
+            if ("dead".equals(taskState.getState()) && Boolean.TRUE.equals(taskState.getFailed())) {
+                return Status.FAILED;
+            } else if (failureEvent(taskState) != null) {
+                // The task won't start, no need to wait for it to be dead
+                return Status.FAILED;
+            } else if (!"running".equals(taskState.getState())) {
+                allTasksAreRunning = false;
+            }
+        }
+        return allTasksAreRunning ? Status.RUNNING : Status.PENDING;
+    }
+
+    /**
+     * Describes why an allocation failed, with the errors of its tasks.
+     *
+     * @param jobID the ID of the Nomad job of the allocation
+     * @param alloc the failed allocation
+     * @return the reason of the failure.
+     */
+    @Nonnull
+    static NomadLaunchException failureOf(@Nonnull String jobID, @Nonnull AllocationListStub alloc) {
+        List<String> errors = new ArrayList<>();
+        boolean taskFailed = false;
+        if (alloc.getTaskStates() != null) {
+            for (Map.Entry<String, TaskState> entry : alloc.getTaskStates().entrySet()) {
+                TaskEvent event = failureEvent(entry.getValue());
+                if (event != null) {
+                    taskFailed = true;
+                    errors.add(String.format("%s: %s (%s)", entry.getKey(), event.getType(), errorOf(event)));
+                } else if ("dead".equals(entry.getValue().getState()) && Boolean.TRUE.equals(entry.getValue().getFailed())) {
+                    errors.add(entry.getKey() + ": failed");
+                }
+            }
+        }
+
+        NomadLaunchException.Reason reason;
+        if ("lost".equals(alloc.getClientStatus())) {
+            reason = NomadLaunchException.Reason.ALLOCATION_LOST;
+        } else if (taskFailed) {
+            reason = NomadLaunchException.Reason.TASK_FAILED;
+        } else {
+            reason = NomadLaunchException.Reason.ALLOCATION_FAILED;
+        }
+        return new NomadLaunchException(reason, String.format("Allocation %s of Nomad job %s is %s, failed tasks: %s",
+                alloc.getId(), jobID, alloc.getClientStatus(), errors));
+    }
+
+    /**
+     * Returns the event telling that a task can't be started, if any.
+     */
+    @CheckForNull
+    private static TaskEvent failureEvent(TaskState taskState) {
+        if (taskState.getEvents() == null) {
+            return null;
+        }
+        for (TaskEvent event : taskState.getEvents()) {
+            if (FAILURE_EVENTS.contains(event.getType())) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    private static String errorOf(TaskEvent event) {
+        for (String error : new String[]{event.getDriverError(), event.getDownloadError(),
+            event.getSetupError(), event.getValidationError()}) {
+            if (error != null && !error.isEmpty()) {
+                return error;
+            }
+        }
+        return "no details";
+    }
+}
@@ -29,6 +29,7 @@ import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.hashicorp.nomad.javasdk.NomadApiClient;
 import com.hashicorp.nomad.javasdk.NomadApiConfiguration;
+import hudson.Util;
 import hudson.security.ACL;
 import java.io.IOException;
 import java.util.Collections;
@@ -65,6 +66,19 @@ public class NomadClientFactory {
         return client;
     }
 
+    /**
+     * Returns a fingerprint of the secret the clients are created with, to
+     * tell when it's rotated.
+     *
+     * @return the digest of the secret, or null if there is none.
+     */
+    String getSecretFingerprint() {
+        if (credentials instanceof StringCredentials) {
+            return Util.getDigestOf(((StringCredentials) credentials).getSecret().getPlainText());
+        }
+        return null;
+    }
+
     private StandardCredentials getCredentials(String credentials) {
         return CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentials(
@@ -0,0 +1,122 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * A bounded pool of long-lived Nomad clients.
+ *
+ * Each client keeps its own HTTP connections alive between requests. The
+ * Apache HTTP client built by the SDK keeps 2 connections per host by default,
+ * which the SDK doesn't let us change, so the pool spreads the requests over
+ * enough clients to allow up to {@code maxRequestsPerHost} concurrent requests
+ * to Nomad.
+ */
+class NomadClientPool {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadClientPool.class.getName());
+
+    /**
+     * The number of connections per host kept by each client: the default of
+     * the Apache HTTP client.
+     */
+    private static final int CONNECTIONS_PER_CLIENT = 2;
+
+    private final Key key;
+
+    private final NomadApiClient[] clients;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    NomadClientPool(@Nonnull Key key, @Nonnull NomadClientFactory factory) throws IOException {
+        this.key = key;
+        int size = Math.max(1, (key.maxRequestsPerHost + CONNECTIONS_PER_CLIENT - 1) / CONNECTIONS_PER_CLIENT);
+        // Credentials are looked up once for the whole pool
+        this.clients = new NomadApiClient[size];
+        for (int i = 0; i < size; i++) {
+            clients[i] = factory.createClient();
+        }
+        LOGGER.log(Level.FINE, "Created a pool of {0} Nomad clients for {1}", new Object[]{size, key.serverUrl});
+    }
+
+    @Nonnull
+    Key getKey() {
+        return key;
+    }
+
+    /**
+     * Returns one of the clients of the pool.
+     *
+     * @return a Nomad client.
+     */
+    @Nonnull
+    NomadApiClient get() {
+        return clients[Math.floorMod(next.getAndIncrement(), clients.length)];
+    }
+
+    /**
+     * Closes all the clients of the pool.
+     */
+    void close() {
+        for (NomadApiClient client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close Nomad client", e);
+            }
+        }
+    }
+
+    /**
+     * The settings the clients of a pool have been created with, along with a
+     * fingerprint of the secret of their credentials.
+     */
+    static final class Key {
+
+        private final String serverUrl;
+        private final String credentialsId;
+        private final int maxRequestsPerHost;
+        private final String secretFingerprint;
+
+        Key(String serverUrl, String credentialsId, int maxRequestsPerHost, String secretFingerprint) {
+            this.serverUrl = serverUrl;
+            this.credentialsId = credentialsId;
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            this.secretFingerprint = secretFingerprint;
+        }
+
+        /**
+         * Tells whether the pool was created with these settings, whatever
+         * the secret.
+         */
+        boolean hasSettings(String serverUrl, String credentialsId, int maxRequestsPerHost) {
+            return this.maxRequestsPerHost == maxRequestsPerHost
+                    && Objects.equals(this.serverUrl, serverUrl)
+                    && Objects.equals(this.credentialsId, credentialsId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return hasSettings(that.serverUrl, that.credentialsId, that.maxRequestsPerHost)
+                    && Objects.equals(secretFingerprint, that.secretFingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{serverUrl, credentialsId, maxRequestsPerHost, secretFingerprint});
+        }
+    }
+}
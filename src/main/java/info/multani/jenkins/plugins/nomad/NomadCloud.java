@@ -11,13 +11,15 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.model.Descriptor;
 import hudson.model.Label;
-import hudson.model.Node;
 import hudson.model.Item;
+import hudson.model.Queue;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import info.multani.jenkins.plugins.nomad.pipeline.NomadJobTemplateMap;
 import java.io.IOException;
 import java.net.ConnectException;
@@ -26,9 +28,15 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -36,6 +44,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
+import jenkins.util.Timer;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.AncestorInPath;
@@ -67,6 +76,19 @@ public class NomadCloud extends Cloud {
      */
     private static final int DEFAULT_RETENTION_TIMEOUT_MINUTES = 5;
 
+    /**
+     * Delay, in minutes, before closing the clients replaced after a
+     * configuration change.
+     */
+    private static final long CLIENT_POOL_CLOSE_DELAY = 5;
+
+    /**
+     * How often, in seconds, the credentials of the clients are looked up
+     * again, so the clients are created again once their secret is rotated.
+     */
+    private static final long CREDENTIALS_CHECK_INTERVAL = Long
+            .getLong(NomadCloud.class.getName() + ".credentialsCheckInterval", 60);
+
     @Nonnull
     private List<NomadJobTemplate> templates = new ArrayList<>();
     private String serverUrl;
@@ -85,10 +107,32 @@ public class NomadCloud extends Cloud {
     private int retentionTimeout = DEFAULT_RETENTION_TIMEOUT_MINUTES;
     private int connectTimeout;
     private int readTimeout;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private boolean batchProvisioning;
+    private boolean predictiveProvisioning;
+    private boolean warmImages;
 
     private Map<String, String> labels;
 
-    private transient NomadApiClient client;
+    private transient NomadClientPool clientPool;
+
+    /**
+     * When the credentials of the clients were last looked up, in
+     * milliseconds; guarded by {@code this}.
+     */
+    private transient long credentialsCheckedAt;
+
+    private transient NomadAllocationWatcher allocationWatcher;
+
+    private transient NomadJobCounter jobCounter;
+
+    private transient ExecutorService registrationExecutor;
+
+    private transient Map<String, NomadSharedJob> sharedJobs;
+
+    private transient Map<String, NomadParameterizedJob> parameterizedJobs;
+
+    private transient volatile NomadJobTemplateIndex templateIndex;
 
     @DataBoundConstructor
     public NomadCloud(String name) {
@@ -114,6 +158,10 @@ public class NomadCloud extends Cloud {
         this.containerCap = source.containerCap;
         this.retentionTimeout = source.retentionTimeout;
         this.connectTimeout = source.connectTimeout;
+        this.maxRequestsPerHost = source.maxRequestsPerHost;
+        this.batchProvisioning = source.batchProvisioning;
+        this.predictiveProvisioning = source.predictiveProvisioning;
+        this.warmImages = source.warmImages;
     }
 
     public int getRetentionTimeout() {
@@ -139,12 +187,27 @@ public class NomadCloud extends Cloud {
      */
     @Nonnull
     public List<NomadJobTemplate> getAllTemplates() {
-        return NomadJobTemplateSource.getAll(this);
+        return getTemplateIndex().getTemplates();
     }
 
     @DataBoundSetter
     public void setTemplates(@Nonnull List<NomadJobTemplate> templates) {
         this.templates = new ArrayList<>(templates);
+        NomadJobTemplateSource.changed();
+    }
+
+    /**
+     * Returns the index of the templates of this cloud, built again if the
+     * templates changed since it was built.
+     */
+    private NomadJobTemplateIndex getTemplateIndex() {
+        long version = NomadJobTemplateSource.getVersion();
+        NomadJobTemplateIndex index = templateIndex;
+        if (index == null || index.getVersion() != version) {
+            index = new NomadJobTemplateIndex(version, NomadJobTemplateSource.getAll(this));
+            templateIndex = index;
+        }
+        return index;
     }
 
     public String getServerUrl() {
@@ -275,6 +338,50 @@ public class NomadCloud extends Cloud {
         this.readTimeout = readTimeout;
     }
 
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequestsPerHostStr(String maxRequestsPerHostStr) {
+        if (StringUtils.isBlank(maxRequestsPerHostStr)) {
+            this.maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+        } else {
+            this.maxRequestsPerHost = Integer.parseInt(maxRequestsPerHostStr);
+        }
+    }
+
+    public String getMaxRequestsPerHostStr() {
+        return String.valueOf(maxRequestsPerHost);
+    }
+
+    public boolean isBatchProvisioning() {
+        return batchProvisioning;
+    }
+
+    @DataBoundSetter
+    public void setBatchProvisioning(boolean batchProvisioning) {
+        this.batchProvisioning = batchProvisioning;
+    }
+
+    public boolean isPredictiveProvisioning() {
+        return predictiveProvisioning;
+    }
+
+    @DataBoundSetter
+    public void setPredictiveProvisioning(boolean predictiveProvisioning) {
+        this.predictiveProvisioning = predictiveProvisioning;
+    }
+
+    public boolean isWarmImages() {
+        return warmImages;
+    }
+
+    @DataBoundSetter
+    public void setWarmImages(boolean warmImages) {
+        this.warmImages = warmImages;
+    }
+
     /**
      * Labels for all jobs started by the plugin
      */
@@ -297,12 +404,99 @@ public class NomadCloud extends Cloud {
     /**
      * Connects to Nomad.
      *
+     * The clients are long-lived and shared between all the callers: they are
+     * only created again when the connection settings of the cloud change, or
+     * when the secret of the credentials changed, as checked every
+     * {@link #CREDENTIALS_CHECK_INTERVAL} seconds.
+     *
      * @return Nomad client.
      */
     public NomadApiClient connect() throws IOException {
-        client = new NomadClientFactory(serverUrl, credentialsId)
-                .createClient();
-        return client;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (clientPool != null && clientPool.getKey().hasSettings(serverUrl, credentialsId, maxRequestsPerHost)
+                    && now - credentialsCheckedAt < TimeUnit.SECONDS.toMillis(CREDENTIALS_CHECK_INTERVAL)) {
+                return clientPool.get();
+            }
+
+            NomadClientFactory factory = new NomadClientFactory(serverUrl, credentialsId);
+            credentialsCheckedAt = now;
+            NomadClientPool.Key key = new NomadClientPool.Key(serverUrl, credentialsId, maxRequestsPerHost,
+                    factory.getSecretFingerprint());
+            if (clientPool == null || !clientPool.getKey().equals(key)) {
+                NomadClientPool previous = clientPool;
+                clientPool = new NomadClientPool(key, factory);
+                if (previous != null) {
+                    // Give the requests still in flight some time to finish
+                    Timer.get().schedule(previous::close, CLIENT_POOL_CLOSE_DELAY, TimeUnit.MINUTES);
+                }
+            }
+            return clientPool.get();
+        }
+    }
+
+    /**
+     * Returns the watcher following the allocations of the jobs started by
+     * this cloud.
+     *
+     * @return the allocation watcher of this cloud.
+     */
+    @Nonnull
+    synchronized NomadAllocationWatcher getAllocationWatcher() {
+        if (allocationWatcher == null) {
+            allocationWatcher = new NomadAllocationWatcher(this);
+        }
+        return allocationWatcher;
+    }
+
+    /**
+     * Returns the executor registering the Nomad jobs of this cloud.
+     *
+     * @return an executor running at most {@link #getMaxRequestsPerHost()}
+     * registrations at the same time.
+     */
+    @Nonnull
+    synchronized ExecutorService getRegistrationExecutor() {
+        if (registrationExecutor == null) {
+            int threads = Math.max(1, maxRequestsPerHost);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Nomad job registration for " + name));
+            executor.allowCoreThreadTimeOut(true);
+            registrationExecutor = executor;
+        }
+        return registrationExecutor;
+    }
+
+    /**
+     * Returns a Nomad job running the agents of a template, in
+     * {@link NomadJobTemplate.JobMode#SHARED_JOB} mode.
+     *
+     * @param jobID the ID of the shared job, see
+     * {@link NomadSharedJob#jobID(NomadJobTemplate, int)}
+     * @return the shared job with this ID.
+     */
+    @Nonnull
+    synchronized NomadSharedJob getSharedJob(@Nonnull String jobID) {
+        if (sharedJobs == null) {
+            sharedJobs = new HashMap<>();
+        }
+        return sharedJobs.computeIfAbsent(jobID, id -> new NomadSharedJob(this, id));
+    }
+
+    /**
+     * Returns the parameterized Nomad job of a template, in
+     * {@link NomadJobTemplate.JobMode#DISPATCH} mode.
+     *
+     * @param template the template of the agents
+     * @return the parameterized job of the template, named after the template.
+     */
+    @Nonnull
+    synchronized NomadParameterizedJob getParameterizedJob(@Nonnull NomadJobTemplate template) {
+        if (parameterizedJobs == null) {
+            parameterizedJobs = new HashMap<>();
+        }
+        return parameterizedJobs.computeIfAbsent(template.getName(), jobID -> new NomadParameterizedJob(this, jobID));
     }
 
     @Override
@@ -317,15 +511,24 @@ public class NomadCloud extends Cloud {
 
             for (NomadJobTemplate t : getTemplatesFor(label)) {
                 LOGGER.log(Level.INFO, "Template: {0}: {1}", new Object[]{label, t.getDisplayName()});
-                for (int i = 1; i <= toBeProvisioned; i++) {
-                    if (!addProvisionedSlave(t, label)) {
-                        break;
+                if (batchProvisioning) {
+                    int count = 0;
+                    while (count < toBeProvisioned && addProvisionedSlave(t, label)) {
+                        count++;
+                    }
+                    toProvision.addAll(BatchProvisioner.plan(this, t, count));
+                } else {
+                    for (int i = 1; i <= toBeProvisioned; i++) {
+                        if (!addProvisionedSlave(t, label)) {
+                            break;
+                        }
+                        toProvision.add(PlannedNodeBuilderFactory.createInstance().cloud(this).template(t).label(label).build());
                     }
-                    toProvision.add(PlannedNodeBuilderFactory.createInstance().cloud(this).template(t).label(label).build());
                 }
                 LOGGER.log(Level.FINEST, "Planned Nomad agents for template \"{0}\": {1}",
                         new Object[]{t.getDisplayName(), toProvision.size()});
                 if (toProvision.size() > 0) {
+                    recordQueueToPlan(t, label, toProvision.size());
                     // Already found a matching template
                     break;
                 }
@@ -352,39 +555,58 @@ public class NomadCloud extends Cloud {
      *
      */
     private boolean addProvisionedSlave(@Nonnull NomadJobTemplate template, @CheckForNull Label label) throws Exception {
-        if (containerCap == 0) {
-            return true;
+        return getJobCounter().tryReserve(template);
+    }
+
+    /**
+     * Returns the counter of the agents started by this cloud.
+     *
+     * @return the job counter of this cloud.
+     */
+    @Nonnull
+    synchronized NomadJobCounter getJobCounter() {
+        if (jobCounter == null) {
+            jobCounter = new NomadJobCounter(this);
+        }
+        return jobCounter;
+    }
+
+    /**
+     * Returns the queue deregistering the Nomad jobs of this cloud.
+     *
+     * @return the deregistration queue of this cloud.
+     */
+    @Nonnull
+    NomadDeregistrationQueue getDeregistrationQueue() {
+        // Shared with the previous instances of this cloud
+        return NomadDeregistrationQueue.get(name);
+    }
+
+    /**
+     * Deregisters a Nomad job started by this cloud. The deregistration is
+     * retried in the background until Nomad confirms it.
+     *
+     * @param jobID the ID of the Nomad job
+     */
+    public void deregisterJob(@Nonnull String jobID) {
+        getDeregistrationQueue().deregister(jobID);
+    }
+
+    /**
+     * Records how long the oldest item waiting for the label has been in the
+     * queue, for each agent planned.
+     */
+    private void recordQueueToPlan(NomadJobTemplate template, @CheckForNull Label label, int planned) {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        for (Queue.BuildableItem item : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            if (Objects.equals(label, item.getAssignedLabel())) {
+                oldest = Math.min(oldest, item.getInQueueSince());
+            }
+        }
+        for (int i = 0; i < planned; i++) {
+            NomadMetrics.record(this, template, NomadMetrics.Stage.QUEUE_TO_PLAN, now - oldest);
         }
-        // TODO: implement me
-//        NomadApiClient client;
-//        client = connect();
-//
-//        // Get the list of of Jenkins jobs running, filter them based on the
-//        // labels configured and return false if we have too much running.
-//        ServerQueryResponse response = client
-//                .getJobsApi()
-//                .list()
-//                .getValue()
-//                .stream()
-//                .filter(job -> job)
-//
-//        List<Job> jobs = null;
-//
-//        PodList slaveList = client.pods().withLabels(getLabels()).list();
-//        List<Pod> slaveListItems = slaveList.getItems();
-//
-//        Map<String, String> labelsMap = template.getLabelsMap();
-//        PodList namedList = client.pods().withLabels(labelsMap).list();
-//        List<Pod> namedListItems = namedList.getItems();
-//
-//        if (slaveListItems != null && containerCap <= slaveListItems.size()) {
-//            LOGGER.log(Level.INFO,
-//                    "Total container cap of {0} reached, not provisioning: {1} running or errored in namespace {2} with Kubernetes labels {3}",
-//                    new Object[]{containerCap, slaveListItems.size(), client.getNamespace(), getLabels()});
-//            return false;
-//        }
-
-        return true;
     }
 
     @Override
@@ -399,12 +621,8 @@ public class NomadCloud extends Cloud {
      * @return the template
      */
     public NomadJobTemplate getTemplate(@CheckForNull Label label) {
-        for (NomadJobTemplate t : getAllTemplates()) {
-            if ((label == null && t.getNodeUsageMode() == Node.Mode.NORMAL) || (label != null && label.matches(t.getLabelSet()))) {
-                return t;
-            }
-        }
-        return null;
+        List<NomadJobTemplate> matching = getTemplateIndex().match(label);
+        return matching.isEmpty() ? null : matching.get(0);
     }
 
     /**
@@ -414,7 +632,8 @@ public class NomadCloud extends Cloud {
      * @return list of matching templates
      */
     public List<NomadJobTemplate> getTemplatesFor(@CheckForNull Label label) {
-        return NomadJobTemplateFilter.applyAll(this, getAllTemplates(), label);
+        // Only the templates matching the label can pass the label filter
+        return NomadJobTemplateFilter.applyAll(this, getTemplateIndex().match(label), label);
     }
 
     /**
@@ -425,6 +644,7 @@ public class NomadCloud extends Cloud {
     public void addTemplate(NomadJobTemplate t) {
         this.templates.add(t);
         // t.parent = this;
+        NomadJobTemplateSource.changed();
     }
 
     /**
@@ -434,6 +654,7 @@ public class NomadCloud extends Cloud {
      */
     public void removeTemplate(NomadJobTemplate t) {
         this.templates.remove(t);
+        NomadJobTemplateSource.changed();
     }
 
     /**
@@ -0,0 +1,281 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.RestartPolicy;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskArtifact;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import static info.multani.jenkins.plugins.nomad.NomadJobTemplateBuilder.substituteEnv;
+import info.multani.jenkins.plugins.nomad.model.EnvVar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A {@link NomadJobTemplate} prepared to build the Nomad jobs of many agents.
+ *
+ * Everything which doesn't depend on the agent is computed once: the
+ * environment variables substituted in the names and images, the environment
+ * of the tasks, the resources, the meta. Building the job of an agent then
+ * only fills in its name and secret.
+ *
+ * The parts shared between the jobs, such as the resources, must not be
+ * modified once built.
+ *
+ * @see NomadJobTemplate#getCompiled(NomadCloud)
+ */
+final class NomadCompiledJobTemplate {
+
+    private static final Pattern JNLPMAC_REF = Pattern.compile("\\$\\{computer.jnlpmac\\}");
+
+    private static final Pattern NAME_REF = Pattern.compile("\\$\\{computer.name\\}");
+
+    private static final Pattern REF = Pattern.compile(JNLPMAC_REF.pattern() + "|" + NAME_REF.pattern());
+
+    /**
+     * The environment variables set by the plugin which depend on the agent.
+     */
+    private static final String SECRET_ENV = "JENKINS_SECRET";
+    private static final String AGENT_NAME_ENV = "JENKINS_AGENT_NAME";
+    private static final String JNLP_URL_ENV = "JENKINS_JNLP_URL";
+
+    /**
+     * The settings of the cloud the template was compiled for.
+     */
+    private final List<Object> cloudSettings;
+
+    private final Map<String, String> meta;
+
+    private final String region;
+
+    private final String[] datacenters;
+
+    private final String url;
+
+    private final List<CompiledTaskGroup> taskGroups = new ArrayList<>();
+
+    NomadCompiledJobTemplate(@Nonnull NomadJobTemplate template, @Nonnull NomadCloud cloud) {
+        this.cloudSettings = settingsOf(cloud);
+
+        Map<String, String> meta = new HashMap<>();
+        meta.putAll(cloud.getLabels());
+        meta.putAll(template.getLabelsMap());
+        meta.put(NomadJobTemplateBuilder.TEMPLATE_META, template.getName());
+        this.meta = Collections.unmodifiableMap(meta);
+
+        this.region = template.getRegion() == null ? cloud.getRegion() : template.getRegion();
+        List<String> dc = template.getDatacenters();
+        if (dc.isEmpty()) {
+            dc = cloud.getDatacentersList();
+        }
+        this.datacenters = dc.toArray(new String[0]);
+        this.url = cloud.getJenkinsUrlOrDie();
+
+        List<TaskTemplate> tasks = template.getTaskGroups();
+        if (tasks.isEmpty()) {
+            tasks = Collections.singletonList(TaskTemplate.defaultTask());
+        }
+        for (TaskTemplate task : tasks) {
+            taskGroups.add(new CompiledTaskGroup(cloud, task, template.getEnvVars()));
+        }
+    }
+
+    /**
+     * Tells whether the template was compiled with the current settings of a
+     * cloud.
+     *
+     * @param cloud the cloud to build the job for
+     * @return true if the compiled template can be used for this cloud.
+     */
+    boolean isCompiledFor(@Nonnull NomadCloud cloud) {
+        return cloudSettings.equals(settingsOf(cloud));
+    }
+
+    private static List<Object> settingsOf(NomadCloud cloud) {
+        return Arrays.asList(cloud.name, cloud.getJenkinsUrlOrDie(), cloud.getJenkinsTunnel(), cloud.getSlaveUrl(),
+                cloud.getRegion(), cloud.getDatacentersList(), cloud.getLabels());
+    }
+
+    /**
+     * Builds the Nomad job of an agent.
+     *
+     * @param jobID the ID of the Nomad job
+     * @param agentName the name of the agent
+     * @param secret the JNLP secret of the agent
+     * @return the Nomad job.
+     */
+    @Nonnull
+    Job build(@Nonnull String jobID, @Nonnull String agentName, @Nonnull String secret) {
+        List<TaskGroup> groups = new ArrayList<>(taskGroups.size());
+        for (CompiledTaskGroup group : taskGroups) {
+            groups.add(group.build(agentName, secret, url));
+        }
+
+        Job job = new Job();
+        job.setMeta(new HashMap<>(meta));
+        job.setId(jobID);
+        job.setName(jobID);
+        job.setRegion(region);
+        job.addDatacenters(datacenters);
+        job.setType("batch");
+        job.setTaskGroups(groups);
+        return job;
+    }
+
+    private static final class CompiledTaskGroup {
+
+        private final String name;
+
+        private final String image;
+
+        private final String command;
+
+        /**
+         * The arguments, split around the references to the agent.
+         */
+        private final List<List<Object>> args = new ArrayList<>();
+
+        /**
+         * The environment which doesn't depend on the agent.
+         */
+        private final Map<String, String> env = new HashMap<>();
+
+        /**
+         * The environment variables set by the plugin for the agent, unless
+         * overridden by the templates.
+         */
+        private final boolean secretEnv;
+        private final boolean agentNameEnv;
+        private final boolean jnlpUrlEnv;
+
+        private final Resources resources;
+
+        private final TaskArtifact artifact;
+
+        private final RestartPolicy restartPolicy = new RestartPolicy()
+                .setMode("fail")
+                .setAttempts(0);
+
+        CompiledTaskGroup(NomadCloud cloud, TaskTemplate task, List<EnvVar> globalEnvVars) {
+            this.name = substituteEnv(task.getName());
+            this.image = substituteEnv(task.getImage());
+            this.command = substituteEnv(task.getCommand());
+            for (String arg : task.getArgs()) {
+                args.add(split(arg));
+            }
+
+            // The defaults, then the variables of the template, then the
+            // ones of the task.
+            env.put("JNLP_PROTOCOL_OPTS", "");
+            env.put("JENKINS_URL", cloud.getJenkinsUrlOrDie());
+            if (!StringUtils.isBlank(cloud.getJenkinsTunnel())) {
+                env.put("JENKINS_TUNNEL", cloud.getJenkinsTunnel());
+            }
+            List<EnvVar> overrides = new ArrayList<>();
+            if (globalEnvVars != null) {
+                overrides.addAll(globalEnvVars);
+            }
+            overrides.addAll(task.getEnvVars());
+            for (EnvVar item : overrides) {
+                env.put(item.getKey(), item.getValue());
+            }
+            this.secretEnv = !env.containsKey(SECRET_ENV);
+            this.agentNameEnv = !env.containsKey(AGENT_NAME_ENV);
+            this.jnlpUrlEnv = !env.containsKey(JNLP_URL_ENV);
+
+            this.resources = new Resources()
+                    .setCpu(task.getResourcesCPU())
+                    .setMemoryMb(task.getResourceMemory());
+            this.artifact = task.shouldDownloadAgentJar()
+                    ? new TaskArtifact().setGetterSource(cloud.getSlaveUrl()).setRelativeDest("/local/")
+                    : null;
+        }
+
+        TaskGroup build(String agentName, String secret, String url) {
+            List<String> arguments = new ArrayList<>(args.size());
+            for (List<Object> parts : args) {
+                arguments.add(join(parts, agentName, secret));
+            }
+
+            Map<String, String> envVars = new HashMap<>(env);
+            if (secretEnv) {
+                envVars.put(SECRET_ENV, secret);
+            }
+            if (agentNameEnv) {
+                envVars.put(AGENT_NAME_ENV, agentName);
+            }
+            if (jnlpUrlEnv) {
+                envVars.put(JNLP_URL_ENV, url + "/computer/" + agentName + "/slave-agent.jnlp");
+            }
+
+            Task task = new Task();
+            task.setName(name);
+            task.setDriver("docker");
+            task.addConfig("image", image);
+            task.addConfig("command", command);
+            task.addConfig("args", arguments);
+            task.addConfig("network_mode", "host");
+            if (artifact != null) {
+                task.addArtifacts(artifact);
+            }
+            task.setEnv(envVars);
+            task.setResources(resources);
+
+            TaskGroup taskGroup = new TaskGroup();
+            taskGroup.setName(name);
+            taskGroup.addTasks(task);
+            taskGroup.setRestartPolicy(restartPolicy);
+            return taskGroup;
+        }
+
+        /**
+         * Splits an argument into its literal parts and the references to the
+         * secret and the name of the agent.
+         */
+        private static List<Object> split(String arg) {
+            List<Object> parts = new ArrayList<>();
+            Matcher matcher = REF.matcher(arg);
+            int start = 0;
+            while (matcher.find()) {
+                if (matcher.start() > start) {
+                    parts.add(arg.substring(start, matcher.start()));
+                }
+                parts.add(JNLPMAC_REF.matcher(matcher.group()).matches() ? Ref.SECRET : Ref.NAME);
+                start = matcher.end();
+            }
+            if (start < arg.length() || parts.isEmpty()) {
+                parts.add(arg.substring(start));
+            }
+            return parts;
+        }
+
+        private static String join(List<Object> parts, String agentName, String secret) {
+            if (parts.size() == 1 && parts.get(0) instanceof String) {
+                return (String) parts.get(0);
+            }
+            StringBuilder arg = new StringBuilder();
+            for (Object part : parts) {
+                if (part == Ref.SECRET) {
+                    arg.append(secret);
+                } else if (part == Ref.NAME) {
+                    arg.append(agentName);
+                } else {
+                    arg.append((String) part);
+                }
+            }
+            return arg.toString();
+        }
+    }
+
+    private enum Ref {
+        SECRET, NAME
+    }
+}
@@ -18,6 +18,12 @@ public class NomadComputer extends AbstractCloudComputer<NomadSlave> {
     public void taskAccepted(Executor executor, Queue.Task task) {
         super.taskAccepted(executor, task);
         LOGGER.fine("Computer " + this + " taskAccepted");
+
+        NomadSlave slave = getNode();
+        if (slave != null) {
+            // The agent is no longer available in the warm pool
+            NomadWarmPool.replenishLater(slave);
+        }
     }
 
     @Override
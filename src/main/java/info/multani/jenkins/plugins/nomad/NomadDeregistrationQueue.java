@@ -0,0 +1,323 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.javasdk.ErrorResponseException;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.slaves.Cloud;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import static hudson.Util.rawEncode;
+
+/**
+ * Deregisters the Nomad jobs of a {@link NomadCloud} until Nomad confirms it.
+ *
+ * There is one queue per cloud name, outliving the {@link NomadCloud}
+ * instances: saving the configuration of Jenkins creates new clouds, which
+ * take over the queue of the previous ones.
+ *
+ * A job is only queued once, however many times its deregistration is asked
+ * for. The deregistrations run a few at a time with the other requests to
+ * Nomad, and the failed ones are retried with an exponential backoff. The jobs
+ * still to deregister are saved, so they are deregistered after a restart of
+ * Jenkins too.
+ */
+class NomadDeregistrationQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadDeregistrationQueue.class.getName());
+
+    /**
+     * Maximum number of deregistrations running at the same time, per cloud.
+     */
+    private static final int MAX_CONCURRENT = Integer
+            .getInteger(NomadDeregistrationQueue.class.getName() + ".maxConcurrent", 4);
+
+    /**
+     * Time to wait, in milliseconds, before retrying a deregistration the
+     * first time. Doubled after each failure.
+     */
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The queues, indexed by cloud name; guarded by the map.
+     */
+    private static final Map<String, NomadDeregistrationQueue> QUEUES = new HashMap<>();
+
+    private final String cloudName;
+
+    /**
+     * The jobs to deregister, in order, indexed by Nomad job ID; guarded by
+     * {@code this}.
+     */
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+
+    private int running;
+
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private final Object saveLock = new Object();
+
+    private NomadDeregistrationQueue(@Nonnull String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * Returns the queue of a cloud, loading the jobs which weren't
+     * deregistered before Jenkins stopped the first time.
+     *
+     * @param cloudName the name of the cloud
+     * @return the queue of the cloud.
+     */
+    @Nonnull
+    static NomadDeregistrationQueue get(@Nonnull String cloudName) {
+        NomadDeregistrationQueue queue;
+        synchronized (QUEUES) {
+            queue = QUEUES.get(cloudName);
+            if (queue != null) {
+                return queue;
+            }
+            queue = new NomadDeregistrationQueue(cloudName);
+            QUEUES.put(cloudName, queue);
+        }
+        queue.load();
+        return queue;
+    }
+
+    /**
+     * Returns the current cloud of this queue.
+     */
+    @CheckForNull
+    private NomadCloud cloud() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        Cloud cloud = jenkins == null ? null : jenkins.getCloud(cloudName);
+        return cloud instanceof NomadCloud ? (NomadCloud) cloud : null;
+    }
+
+    /**
+     * Deregisters a Nomad job.
+     *
+     * @param jobID the ID of the Nomad job
+     * @return a future completed once Nomad deregistered the job, or once it
+     * doesn't know the job anymore. It's never completed exceptionally: the
+     * deregistration is retried until it succeeds.
+     */
+    @Nonnull
+    CompletableFuture<Void> deregister(@Nonnull String jobID) {
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            Entry entry = pending.get(jobID);
+            if (entry != null) {
+                return entry.future;
+            }
+            entry = new Entry(jobID);
+            pending.put(jobID, entry);
+            future = entry.future;
+        }
+        LOGGER.log(Level.FINE, "Queued the deregistration of job {0} from cloud {1}", new Object[]{jobID, cloudName});
+        saveLater();
+        pump();
+        return future;
+    }
+
+    /**
+     * Returns the number of jobs still to deregister.
+     *
+     * @return the number of pending deregistrations.
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Starts the deregistrations which are due, as long as there are free
+     * slots.
+     */
+    private void pump() {
+        List<Entry> toRun = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Entry entry : pending.values()) {
+                if (running >= MAX_CONCURRENT) {
+                    break;
+                }
+                if (!entry.running && entry.nextAttempt <= now) {
+                    entry.running = true;
+                    running++;
+                    toRun.add(entry);
+                }
+            }
+        }
+
+        if (toRun.isEmpty()) {
+            return;
+        }
+        NomadCloud cloud = cloud();
+        for (Entry entry : toRun) {
+            if (cloud == null) {
+                // Removed from the configuration: kept in case it comes back
+                done(entry, false);
+                continue;
+            }
+            try {
+                cloud.getRegistrationExecutor().submit(() -> run(cloud, entry));
+            } catch (RejectedExecutionException e) {
+                done(entry, false);
+            }
+        }
+    }
+
+    private void run(NomadCloud cloud, Entry entry) {
+        boolean deregistered;
+        try {
+            String evaluationID = cloud.connect().getJobsApi().deregister(entry.jobID).getValue();
+            LOGGER.log(Level.FINE, "Deregistered {0} using evaluation ID {1}",
+                    new Object[]{entry.jobID, evaluationID});
+            deregistered = true;
+        } catch (ErrorResponseException e) {
+            // Already gone: nothing left to do
+            deregistered = e.getServerErrorCode() == 404;
+            if (!deregistered) {
+                LOGGER.log(Level.WARNING, "Failed to deregister job {0} from cloud {1}: HTTP {2} {3}",
+                        new Object[]{entry.jobID, cloud.name, e.getServerErrorCode(), e.getServerErrorMessage()});
+            }
+        } catch (IOException | NomadException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, String.format("Failed to deregister job %s from cloud %s",
+                    entry.jobID, cloud.name), e);
+            deregistered = false;
+        }
+        done(entry, deregistered);
+    }
+
+    private void done(Entry entry, boolean deregistered) {
+        long backoff = 0;
+        synchronized (this) {
+            running--;
+            entry.running = false;
+            if (deregistered) {
+                pending.remove(entry.jobID);
+            } else {
+                backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(entry.attempts, 20));
+                entry.attempts++;
+                entry.nextAttempt = System.currentTimeMillis() + backoff;
+            }
+        }
+
+        if (deregistered) {
+            entry.future.complete(null);
+            saveLater();
+        } else {
+            LOGGER.log(Level.INFO, "Retrying to deregister job {0} from cloud {1} in {2} ms",
+                    new Object[]{entry.jobID, cloudName, backoff});
+            Timer.get().schedule(this::pump, backoff, TimeUnit.MILLISECONDS);
+        }
+        pump();
+    }
+
+    // ---- Persistence
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(new File(Jenkins.getInstance().getRootDir(),
+                NomadDeregistrationQueue.class.getName()), rawEncode(cloudName) + ".xml"));
+    }
+
+    /**
+     * Saves the jobs still to deregister, soon: the changes made in the
+     * meantime are saved at once.
+     */
+    private void saveLater() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            Timer.get().submit(this::save);
+        }
+    }
+
+    private void save() {
+        // The newest list is always written last
+        synchronized (saveLock) {
+            saveScheduled.set(false);
+            List<String> jobIDs;
+            synchronized (this) {
+                jobIDs = new ArrayList<>(pending.keySet());
+            }
+
+            XmlFile file = getConfigFile();
+            try {
+                if (jobIDs.isEmpty()) {
+                    if (file.exists()) {
+                        file.delete();
+                    }
+                } else {
+                    file.write(jobIDs);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to save the deregistrations of cloud %s", cloudName), e);
+            }
+        }
+    }
+
+    /**
+     * Queues again the jobs which weren't deregistered before Jenkins
+     * stopped.
+     */
+    private void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            Object saved = file.read();
+            if (saved instanceof List) {
+                for (Object jobID : (List<?>) saved) {
+                    deregister(String.valueOf(jobID));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Failed to load the deregistrations of cloud %s", cloudName), e);
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resume() {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof NomadCloud) {
+                // Loads the queue
+                ((NomadCloud) cloud).getDeregistrationQueue();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final String jobID;
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        int attempts;
+
+        long nextAttempt;
+
+        boolean running;
+
+        Entry(String jobID) {
+            this.jobID = jobID;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.AllocationMetric;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Checks the evaluation of a Nomad job, to tell as soon as possible that the
+ * job can't be placed.
+ *
+ * Without this check, a job which doesn't fit in the cluster would only be
+ * noticed once the launch times out: its evaluation is complete, but no
+ * allocation is ever created.
+ *
+ * The evaluation is followed through Nomad blocking queries, so the server
+ * only answers once it has changed. A canceled evaluation was superseded: the
+ * check goes on with the next evaluation of the job.
+ */
+class NomadEvaluationChecker {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadEvaluationChecker.class.getName());
+
+    /**
+     * Maximum number of evaluations checked at the same time.
+     */
+    private static final int MAX_CHECKS = Integer
+            .getInteger(NomadEvaluationChecker.class.getName() + ".maxChecks", 8);
+
+    /**
+     * Maximum number of evaluations waiting for their check. The checks
+     * beyond are skipped: the launch then only fails once it times out.
+     */
+    private static final int MAX_PENDING_CHECKS = Integer
+            .getInteger(NomadEvaluationChecker.class.getName() + ".maxPendingChecks", 256);
+
+    /**
+     * How long, in seconds, Nomad waits for the evaluation to change before
+     * answering a blocking query.
+     */
+    private static final long WAIT = 10;
+
+    /**
+     * Maximum time to wait before querying Nomad again after an error.
+     */
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(10);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_CHECKS, MAX_CHECKS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_PENDING_CHECKS),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Nomad evaluation checker"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final NomadCloud cloud;
+
+    private String evaluationID;
+
+    @CheckForNull
+    private final String taskGroup;
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    private NomadEvaluationChecker(NomadCloud cloud, String evaluationID, @CheckForNull String taskGroup) {
+        this.cloud = cloud;
+        this.evaluationID = evaluationID;
+        this.taskGroup = taskGroup;
+    }
+
+    /**
+     * Checks an evaluation until it's complete.
+     *
+     * @param cloud the cloud the job was registered with
+     * @param evaluationID the ID of the evaluation to check
+     * @param taskGroup the task group of the agent, or null if the whole job
+     * belongs to the agent
+     * @return a future completed once the evaluation placed the job, or
+     * completed exceptionally with a {@link NomadLaunchException} if it
+     * couldn't. Complete it to stop checking.
+     */
+    @Nonnull
+    static CompletableFuture<Void> check(@Nonnull NomadCloud cloud, @Nonnull String evaluationID,
+            @CheckForNull String taskGroup) {
+        NomadEvaluationChecker checker = new NomadEvaluationChecker(cloud, evaluationID, taskGroup);
+        try {
+            EXECUTOR.execute(checker::run);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "Too many evaluations to check, skipping evaluation {0}", evaluationID);
+            checker.result.complete(null);
+        }
+        return checker.result;
+    }
+
+    private void run() {
+        BigInteger index = null;
+        long backoff = 0;
+        try {
+            while (!result.isDone()) {
+                Evaluation evaluation;
+                try {
+                    // The SDK's HTTP client has no read timeout: the request
+                    // holds one of the shared connections for the wait, at
+                    // most.
+                    NomadApiClient client = cloud.connect();
+                    QueryOptions<Evaluation> options = new QueryOptions<>();
+                    if (index != null) {
+                        // Block until the evaluation changes
+                        options.setIndex(index);
+                        options.setWaitStrategy(new NomadFixedWait(WAIT));
+                    }
+                    ServerQueryResponse<Evaluation> response = client.getEvaluationsApi()
+                            .info(evaluationID, options);
+                    index = response.getIndex();
+                    evaluation = response.getValue();
+
+                    if ("canceled".equals(evaluation.getStatus())) {
+                        String next = nextEvaluation(client, evaluation);
+                        LOGGER.log(Level.FINE, "Evaluation {0} is canceled, checking evaluation {1} instead",
+                                new Object[]{evaluationID, next});
+                        if (next == null) {
+                            // Nothing to check anymore: the launch times out
+                            // if the job is never placed
+                            result.complete(null);
+                            return;
+                        }
+                        evaluationID = next;
+                        index = null;
+                        continue;
+                    }
+                    backoff = 0;
+                } catch (IOException | NomadException e) {
+                    backoff = Math.min(MAX_BACKOFF, Math.max(1000, backoff * 2));
+                    LOGGER.log(Level.FINE, String.format("Unable to check evaluation %s, retrying in %d ms",
+                            evaluationID, backoff), e);
+                    index = null;
+                    Thread.sleep(backoff);
+                    continue;
+                }
+                update(evaluation);
+            }
+        } catch (InterruptedException e) {
+            result.complete(null);
+        }
+    }
+
+    private void update(Evaluation evaluation) {
+        String status = evaluation.getStatus();
+        if ("failed".equals(status)) {
+            result.completeExceptionally(new NomadLaunchException(NomadLaunchException.Reason.EVALUATION_FAILED,
+                    String.format("Evaluation %s is %s: %s", evaluationID, status, evaluation.getStatusDescription())));
+        } else if ("complete".equals(status)) {
+            List<String> failures = placementFailures(evaluation);
+            if (failures.isEmpty()) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(new NomadLaunchException(NomadLaunchException.Reason.PLACEMENT_FAILED,
+                        String.format("Evaluation %s couldn't place %s", evaluationID, failures)));
+            }
+        }
+    }
+
+    /**
+     * Returns the evaluation superseding a canceled one: the next evaluation
+     * it names, or else the newest evaluation of the job, if it's newer.
+     */
+    @CheckForNull
+    private static String nextEvaluation(NomadApiClient client, Evaluation canceled)
+            throws IOException, NomadException {
+        if (StringUtils.isNotEmpty(canceled.getNextEval())) {
+            return canceled.getNextEval();
+        }
+        Evaluation newest = null;
+        for (Evaluation evaluation : client.getJobsApi().evaluations(canceled.getJobId()).getValue()) {
+            if (evaluation.getCreateIndex() != null
+                    && (newest == null || evaluation.getCreateIndex().compareTo(newest.getCreateIndex()) > 0)) {
+                newest = evaluation;
+            }
+        }
+        if (newest == null || canceled.getCreateIndex() == null
+                || newest.getCreateIndex().compareTo(canceled.getCreateIndex()) <= 0) {
+            return null;
+        }
+        return newest.getId();
+    }
+
+    /**
+     * Describes why the task groups of the agent couldn't be placed.
+     */
+    private List<String> placementFailures(Evaluation evaluation) {
+        List<String> failures = new ArrayList<>();
+        Map<String, AllocationMetric> failed = evaluation.getFailedTgAllocs();
+        if (failed == null) {
+            return failures;
+        }
+        for (Map.Entry<String, AllocationMetric> entry : failed.entrySet()) {
+            if (taskGroup != null && !taskGroup.equals(entry.getKey())) {
+                continue;
+            }
+            AllocationMetric metric = entry.getValue();
+            failures.add(String.format("%s (%d nodes evaluated, %d filtered %s, %d exhausted %s)",
+                    entry.getKey(), metric.getNodesEvaluated(),
+                    metric.getNodesFiltered(), metric.getConstraintFiltered(),
+                    metric.getNodesExhausted(), metric.getDimensionExhausted()));
+        }
+        return failures;
+    }
+}
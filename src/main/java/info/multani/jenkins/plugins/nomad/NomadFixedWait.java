@@ -0,0 +1,20 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.javasdk.WaitStrategy;
+
+/**
+ * Asks Nomad to answer a blocking query after a fixed time, at most.
+ */
+final class NomadFixedWait extends WaitStrategy {
+
+    private final long seconds;
+
+    NomadFixedWait(long seconds) {
+        this.seconds = seconds;
+    }
+
+    @Override
+    public String getWait() {
+        return seconds + "s";
+    }
+}
@@ -0,0 +1,271 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Constraint;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobListStub;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.RestartPolicy;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Pulls the images of the templates on the Nomad client nodes before the
+ * agents need them.
+ *
+ * For each template of the clouds warming their images, a low priority
+ * {@code system} job has a task per image of the template on every node
+ * eligible for the agents of the template, so Docker pulls the images there.
+ * None of the code of the images runs: the entrypoint of the tasks is a file
+ * no image has, so the tasks fail to start once the images are pulled, and
+ * they're not started again.
+ *
+ * The jobs are named after the URL of Jenkins, the cloud and the template, so
+ * several Jenkins and clouds can warm their images on the same cluster. A job
+ * is registered again when its specification changes, and deregistered once
+ * the template is removed, or the cloud stops warming its images.
+ */
+@Extension
+public class NomadImageWarmer extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadImageWarmer.class.getName());
+
+    /**
+     * How often, in minutes, the jobs of the image warmer are updated.
+     */
+    private static final long RECURRENCE_PERIOD = Long
+            .getLong(NomadImageWarmer.class.getName() + ".recurrencePeriod", 10);
+
+    /**
+     * The priority of the jobs of the image warmer: lower than the default
+     * one, 50, so they never get in the way of the agents.
+     */
+    private static final int PRIORITY = Integer.getInteger(NomadImageWarmer.class.getName() + ".priority", 10);
+
+    static final String JOB_PREFIX = "jenkins-image-warmer-";
+
+    /**
+     * The IDs of the jobs of the image warmer: the prefix, the scope of the
+     * job, then the name of the template.
+     */
+    private static final Pattern JOB_ID = Pattern.compile(Pattern.quote(JOB_PREFIX) + "[0-9a-f]{8}-.*");
+
+    /**
+     * The meta of the jobs of the image warmer, set to the URL of Jenkins.
+     */
+    static final String WARMER_META = "jenkins/image-warmer";
+
+    /**
+     * The meta of the jobs of the image warmer storing the digest of their
+     * specification, so they aren't registered again after a restart.
+     */
+    static final String DIGEST_META = "jenkins/image-warmer-digest";
+
+    /**
+     * The entrypoint of the tasks: a file which doesn't exist in the images,
+     * so they're pulled but never run.
+     */
+    private static final String ENTRYPOINT = "/nonexistent/jenkins-image-warmer";
+
+    /**
+     * The digests of the jobs last registered or found, indexed by cloud name
+     * and job ID.
+     */
+    private final Map<String, String> registered = new ConcurrentHashMap<>();
+
+    public NomadImageWarmer() {
+        super("Nomad image warmer");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(RECURRENCE_PERIOD);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof NomadCloud) {
+                try {
+                    update((NomadCloud) cloud);
+                } catch (IOException | NomadException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, String.format("Unable to warm the images of cloud %s", cloud.name), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the jobs of the templates of a cloud, and deregisters the
+     * ones not needed anymore.
+     */
+    void update(@Nonnull NomadCloud cloud) throws IOException, NomadException {
+        Map<String, Job> jobs = new HashMap<>();
+        if (cloud.isWarmImages()) {
+            for (NomadJobTemplate template : cloud.getTemplates()) {
+                Job job = buildJob(cloud, template);
+                jobs.put(job.getId(), job);
+            }
+        }
+
+        NomadApiClient client = cloud.connect();
+        String prefix = jobPrefix(cloud);
+        Map<String, JobListStub> existing = new HashMap<>();
+        List<String> unscoped = new ArrayList<>();
+        for (JobListStub stub : client.getJobsApi().list(JOB_PREFIX).getValue()) {
+            if ("dead".equals(stub.getStatus())) {
+                continue;
+            }
+            if (stub.getId().startsWith(prefix)) {
+                existing.put(stub.getId(), stub);
+            } else if (!JOB_ID.matcher(stub.getId()).matches()) {
+                unscoped.add(stub.getId());
+            }
+        }
+
+        for (Job job : jobs.values()) {
+            String digest = job.getMeta().get(DIGEST_META);
+            String key = cloud.name + "/" + job.getId();
+            if (existing.containsKey(job.getId())) {
+                if (digest.equals(registered.get(key))) {
+                    continue;
+                }
+                // Registered before a restart of Jenkins
+                Map<String, String> meta = client.getJobsApi().info(job.getId()).getValue().getMeta();
+                if (meta != null && digest.equals(meta.get(DIGEST_META))) {
+                    registered.put(key, digest);
+                    continue;
+                }
+            }
+            String evaluationID = client.getJobsApi().register(job).getValue();
+            registered.put(key, digest);
+            LOGGER.log(Level.INFO, "Registered image warmer job {0} in cloud {1} with evaluation ID: {2}",
+                    new Object[]{job.getId(), cloud.name, evaluationID});
+        }
+
+        List<String> removed = new ArrayList<>();
+        for (String jobID : existing.keySet()) {
+            if (!jobs.containsKey(jobID)) {
+                removed.add(jobID);
+            }
+        }
+        for (String jobID : unscoped) {
+            // Registered before the jobs were scoped: only the ones of this
+            // Jenkins, the cluster may be shared
+            Map<String, String> meta = client.getJobsApi().info(jobID).getValue().getMeta();
+            if (meta != null && cloud.getJenkinsUrlOrDie().equals(meta.get(WARMER_META))) {
+                removed.add(jobID);
+            }
+        }
+        for (String jobID : removed) {
+            LOGGER.log(Level.INFO, "Deregistering image warmer job {0} from cloud {1}",
+                    new Object[]{jobID, cloud.name});
+            registered.remove(cloud.name + "/" + jobID);
+            cloud.deregisterJob(jobID);
+        }
+    }
+
+    /**
+     * Returns the ID of the job pulling the images of a template.
+     *
+     * @param cloud the cloud of the template
+     * @param template the template to pull the images of
+     * @return the ID of the job, scoped to this Jenkins and the cloud.
+     */
+    @Nonnull
+    static String jobID(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template) {
+        return jobPrefix(cloud) + template.getName();
+    }
+
+    private static String jobPrefix(NomadCloud cloud) {
+        String scope = Util.getDigestOf(cloud.getJenkinsUrlOrDie() + "\n" + cloud.name).substring(0, 8);
+        return JOB_PREFIX + scope + "-";
+    }
+
+    /**
+     * Builds the job pulling the images of a template. The job is placed like
+     * the agents of the template.
+     *
+     * @param cloud the cloud of the template
+     * @param template the template to pull the images of
+     * @return the job.
+     */
+    @Nonnull
+    static Job buildJob(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template) {
+        String jobID = jobID(cloud, template);
+        Job agentJob = template.getCompiled(cloud).build(jobID, jobID, "");
+
+        TaskGroup group = new TaskGroup();
+        group.setName("images");
+        group.setRestartPolicy(new RestartPolicy()
+                .setMode("fail")
+                .setAttempts(0));
+        Set<Object> images = new HashSet<>();
+        for (TaskGroup agentGroup : agentJob.getTaskGroups()) {
+            for (Task agentTask : agentGroup.getTasks()) {
+                Object image = agentTask.getConfig() == null ? null : agentTask.getConfig().get("image");
+                if (image == null || !images.add(image)) {
+                    continue;
+                }
+                List<Constraint> constraints = new ArrayList<>();
+                if (agentGroup.getConstraints() != null) {
+                    constraints.addAll(agentGroup.getConstraints());
+                }
+                if (agentTask.getConstraints() != null) {
+                    constraints.addAll(agentTask.getConstraints());
+                }
+
+                Task task = new Task();
+                task.setName("image-" + (images.size() - 1));
+                task.setDriver(agentTask.getDriver());
+                task.addConfig("image", image);
+                task.addConfig("entrypoint", Collections.singletonList(ENTRYPOINT));
+                task.setConstraints(constraints.isEmpty() ? null : constraints);
+                task.setResources(new Resources()
+                        .setCpu(20)
+                        .setMemoryMb(16));
+                group.addTasks(task);
+            }
+        }
+
+        Map<String, String> meta = new LinkedHashMap<>(cloud.getLabels());
+        meta.put(WARMER_META, cloud.getJenkinsUrlOrDie());
+
+        Job job = new Job();
+        job.setId(jobID);
+        job.setName(jobID);
+        job.setType("system");
+        job.setPriority(PRIORITY);
+        job.setRegion(agentJob.getRegion());
+        job.setDatacenters(agentJob.getDatacenters());
+        job.setConstraints(agentJob.getConstraints());
+        job.setMeta(meta);
+        job.setTaskGroups(Arrays.asList(group));
+        // The API objects are printed as JSON
+        meta.put(DIGEST_META, Util.getDigestOf(job.toString()));
+        return job;
+    }
+}
@@ -0,0 +1,79 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Label;
+import hudson.model.Node;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Tracks the Nomad agents which have been added to Jenkins but are not
+ * connected yet.
+ *
+ * Agents are registered with their template when their launch starts, and
+ * removed once their launcher is done, whether they connected or failed. An
+ * agent counts against every label its template matches, whatever the label
+ * it was provisioned for: agents started for the warm pool or ahead of the
+ * demand serve any of them.
+ */
+@Extension
+public class NomadInProvisioning extends InProvisioning {
+
+    /**
+     * The templates of the agents in provisioning, indexed by agent name.
+     */
+    private final ConcurrentMap<String, NomadJobTemplate> inProvisioning = new ConcurrentHashMap<>();
+
+    @Nonnull
+    static NomadInProvisioning get() {
+        return ExtensionList.lookupSingleton(NomadInProvisioning.class);
+    }
+
+    @Nonnull
+    @Override
+    public Set<String> getInProvisioning(@CheckForNull Label label) {
+        Set<String> names = new HashSet<>();
+        inProvisioning.forEach((name, template) -> {
+            if (label == null ? template.getNodeUsageMode() == Node.Mode.NORMAL
+                    : label.matches(template.getLabelSet())) {
+                names.add(name);
+            }
+        });
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Registers an agent whose launch has just started.
+     *
+     * @param template the template of the agent
+     * @param name the name of the agent
+     */
+    void add(@Nonnull NomadJobTemplate template, @Nonnull String name) {
+        inProvisioning.put(name, template);
+    }
+
+    /**
+     * Forgets an agent, once it's connected or has failed.
+     *
+     * @param name the name of the agent
+     */
+    void remove(@Nonnull String name) {
+        inProvisioning.remove(name);
+    }
+
+    /**
+     * Tells whether an agent is still being provisioned.
+     *
+     * @param name the name of the agent
+     * @return true if the agent is being provisioned.
+     */
+    boolean contains(@Nonnull String name) {
+        return inProvisioning.containsKey(name);
+    }
+}
@@ -0,0 +1,115 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Node;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Counts the agents started by a {@link NomadCloud}, in total and per template.
+ *
+ * The counts are seeded once from the agents known by Jenkins, then kept up to
+ * date in memory as agents are provisioned and terminated, so the caps can be
+ * checked without querying Nomad for each provisioning request. Agents are
+ * counted rather than Nomad jobs: an agent holds a slot whether it has a job
+ * of its own, shares a job with other agents, or was dispatched from a
+ * parameterized job. The Nomad jobs left without an agent aren't counted, so
+ * removing them doesn't release any slot.
+ */
+class NomadJobCounter {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadJobCounter.class.getName());
+
+    private final NomadCloud cloud;
+
+    private boolean seeded;
+
+    private int total;
+
+    /**
+     * The number of agents of each template, indexed by cloud name and
+     * template name.
+     */
+    private final Map<String, Integer> perTemplate = new HashMap<>();
+
+    NomadJobCounter(@Nonnull NomadCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Reserves a slot for a new agent from the given template, if neither the
+     * cloud nor the template cap is reached.
+     *
+     * @param template the template the agent will be started from
+     * @return true if a slot has been reserved, false if a cap is reached.
+     */
+    synchronized boolean tryReserve(@Nonnull NomadJobTemplate template) {
+        seed();
+
+        int containerCap = cloud.getContainerCap();
+        if (containerCap <= total) {
+            LOGGER.log(Level.INFO,
+                    "Total container cap of {0} reached, not provisioning: {1} running or errored on cloud {2}",
+                    new Object[]{containerCap, total, cloud.name});
+            return false;
+        }
+
+        String key = keyOf(template.getName());
+        int count = perTemplate.getOrDefault(key, 0);
+        if (template.getInstanceCap() <= count) {
+            LOGGER.log(Level.INFO,
+                    "Template instance cap of {0} reached for template {1}, not provisioning: {2} running or errored",
+                    new Object[]{template.getInstanceCap(), template.getName(), count});
+            return false;
+        }
+
+        total++;
+        perTemplate.put(key, count + 1);
+        return true;
+    }
+
+    /**
+     * Releases the slot of an agent started from the given template.
+     *
+     * @param template the template the agent was started from
+     */
+    synchronized void release(@CheckForNull NomadJobTemplate template) {
+        total = Math.max(0, total - 1);
+        if (template != null) {
+            perTemplate.computeIfPresent(keyOf(template.getName()), (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Counts the agents of the cloud already known by Jenkins, the first time
+     * only.
+     */
+    private void seed() {
+        if (seeded) {
+            return;
+        }
+
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (!(node instanceof NomadSlave) || !cloud.name.equals(((NomadSlave) node).getCloudName())) {
+                continue;
+            }
+            NomadJobTemplate template = ((NomadSlave) node).getTemplate();
+            total++;
+            if (template != null) {
+                perTemplate.merge(keyOf(template.getName()), 1, Integer::sum);
+            }
+        }
+        seeded = true;
+
+        LOGGER.log(Level.FINE, "Found {0} agents for cloud {1}: {2}",
+                new Object[]{total, cloud.name, perTemplate});
+    }
+
+    private String keyOf(String templateName) {
+        return cloud.name + "/" + templateName;
+    }
+}
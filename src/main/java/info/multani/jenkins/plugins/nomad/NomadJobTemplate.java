@@ -3,6 +3,7 @@ package info.multani.jenkins.plugins.nomad;
 import com.google.common.collect.ImmutableMap;
 import com.hashicorp.nomad.apimodel.Job;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.DescriptorVisibilityFilter;
@@ -10,6 +11,7 @@ import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
 import hudson.tools.ToolLocationNodeProperty;
+import hudson.util.QuotedStringTokenizer;
 import info.multani.jenkins.plugins.nomad.model.EnvVar;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -18,10 +20,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
@@ -42,12 +46,40 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     private static final transient String JOB_NAME_FORMAT = "%s-%s";
 
-    private static final String DEFAULT_ID = "jenkins/slave-default";
-
     private static final Logger LOGGER = Logger.getLogger(NomadJobTemplate.class.getName());
 
     public static final int DEFAULT_SLAVE_JENKINS_CONNECTION_TIMEOUT = 100;
 
+    /**
+     * How the agents of a template are mapped to Nomad jobs.
+     */
+    public enum JobMode {
+        /**
+         * Each agent runs in its own Nomad job.
+         */
+        JOB_PER_AGENT("One Nomad job per agent"),
+        /**
+         * All the agents run in a single Nomad job, with one task group per
+         * agent.
+         */
+        SHARED_JOB("One Nomad job for all the agents"),
+        /**
+         * The template is registered once as a parameterized Nomad job, which
+         * is dispatched for each agent.
+         */
+        DISPATCH("One dispatch of a parameterized Nomad job per agent");
+
+        private final String description;
+
+        JobMode(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
     private String region;
 
     private List<String> datacenters;
@@ -66,10 +98,16 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     private int idleMinutes;
 
+    private int minIdle;
+
+    private int maxIdleAge;
+
     private String label;
 
     private Node.Mode nodeUsageMode;
 
+    private JobMode jobMode;
+
     private Integer resourcesCPU = 100; // Mhz
 
     private Integer resourcesMemory = 300; // MB
@@ -80,6 +118,12 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
 
     private transient List<ToolLocationNodeProperty> nodeProperties;
 
+    /**
+     * This template, prepared to build the jobs of the agents. Reset when the
+     * template changes.
+     */
+    private transient volatile NomadCompiledJobTemplate compiled;
+
     @DataBoundConstructor
     public NomadJobTemplate() {
     }
@@ -91,6 +135,9 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         this.setName(from.getName());
         this.setNodeUsageMode(from.getNodeUsageMode());
         this.setSlaveConnectTimeout(from.getSlaveConnectTimeout());
+        this.setJobMode(from.getJobMode());
+        this.setMinIdle(from.getMinIdle());
+        this.setMaxIdleAge(from.getMaxIdleAge());
     }
 
     private Optional<TaskTemplate> getFirstContainer() {
@@ -100,6 +147,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     @DataBoundSetter
     public void setName(String name) {
         this.name = name;
+        compiled = null;
     }
 
     public String getName() {
@@ -124,6 +172,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     @DataBoundSetter
     public void setRegion(String region) {
         this.region = region;
+        compiled = null;
     }
 
     public List<String> getDatacenters() {
@@ -136,6 +185,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     @DataBoundSetter
     public void setDatacenters(List<String> datacenters) {
         this.datacenters = datacenters;
+        compiled = null;
     }
 
     public void setInstanceCap(int instanceCap) {
@@ -224,24 +274,92 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         }
     }
 
+    public void setMinIdle(int minIdle) {
+        this.minIdle = Math.max(0, minIdle);
+    }
+
+    /**
+     * Returns the number of idle agents kept ready for this template.
+     *
+     * @return the size of the warm pool, 0 if disabled.
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    @DataBoundSetter
+    public void setMinIdleStr(String minIdle) {
+        if (StringUtils.isBlank(minIdle)) {
+            setMinIdle(0);
+        } else {
+            setMinIdle(Integer.parseInt(minIdle));
+        }
+    }
+
+    public String getMinIdleStr() {
+        if (getMinIdle() == 0) {
+            return "";
+        } else {
+            return String.valueOf(minIdle);
+        }
+    }
+
+    public void setMaxIdleAge(int maxIdleAge) {
+        this.maxIdleAge = Math.max(0, maxIdleAge);
+    }
+
+    /**
+     * Returns how long, in minutes, an agent of the warm pool can stay idle
+     * before being replaced.
+     *
+     * @return the maximum idle age, 0 if unlimited.
+     */
+    public int getMaxIdleAge() {
+        return maxIdleAge;
+    }
+
+    @DataBoundSetter
+    public void setMaxIdleAgeStr(String maxIdleAge) {
+        if (StringUtils.isBlank(maxIdleAge)) {
+            setMaxIdleAge(0);
+        } else {
+            setMaxIdleAge(Integer.parseInt(maxIdleAge));
+        }
+    }
+
+    public String getMaxIdleAgeStr() {
+        if (getMaxIdleAge() == 0) {
+            return "";
+        } else {
+            return String.valueOf(maxIdleAge);
+        }
+    }
+
     public Set<LabelAtom> getLabelSet() {
         return Label.parse(label);
     }
 
+    /**
+     * Returns the labels of the template as Nomad meta.
+     *
+     * The label names are read the way {@link Label#parse(String)} does, but
+     * without looking up their atoms in Jenkins: only the names are needed.
+     *
+     * @return the meta keys of the labels, such as {@code jenkins/linux}.
+     */
     public Map<String, String> getLabelsMap() {
-        Set<LabelAtom> labelSet = getLabelSet();
-        ImmutableMap.Builder<String, String> builder = ImmutableMap.<String, String>builder();
-        if (!labelSet.isEmpty()) {
-            labelSet.forEach((label) -> {
-                builder.put(label == null ? DEFAULT_ID : "jenkins/" + label.getName(), "true");
-            });
+        Map<String, String> labels = new TreeMap<>();
+        QuotedStringTokenizer tokenizer = new QuotedStringTokenizer(Util.fixNull(label));
+        while (tokenizer.hasMoreTokens()) {
+            labels.put("jenkins/" + tokenizer.nextToken(), "true");
         }
-        return builder.build();
+        return ImmutableMap.copyOf(labels);
     }
 
     @DataBoundSetter
     public void setLabel(String label) {
         this.label = label;
+        compiled = null;
     }
 
     public String getLabel() {
@@ -262,6 +380,16 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         return nodeUsageMode;
     }
 
+    @DataBoundSetter
+    public void setJobMode(JobMode jobMode) {
+        this.jobMode = jobMode;
+    }
+
+    @Nonnull
+    public JobMode getJobMode() {
+        return jobMode == null ? JobMode.JOB_PER_AGENT : jobMode;
+    }
+
     public List<EnvVar> getEnvVars() {
         if (envVars == null) {
             return Collections.emptyList();
@@ -272,6 +400,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
     public void addEnvVars(List<EnvVar> envVars) {
         if (envVars != null) {
             this.envVars.addAll(envVars);
+            compiled = null;
         }
     }
 
@@ -301,6 +430,7 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         synchronized (this.taskGroups) {
             this.taskGroups.clear();
             this.taskGroups.addAll(items);
+            compiled = null;
         }
     }
 
@@ -338,6 +468,84 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
         return new NomadJobTemplateBuilder(this).build(slave);
     }
 
+    /**
+     * Returns this template prepared to build the jobs of the agents of a
+     * cloud, compiling it again if the template or the cloud changed.
+     *
+     * @param cloud the cloud the agents are started from
+     * @return the compiled template
+     */
+    @Nonnull
+    NomadCompiledJobTemplate getCompiled(@Nonnull NomadCloud cloud) {
+        NomadCompiledJobTemplate current = compiled;
+        if (current == null || !current.isCompiledFor(cloud)) {
+            current = new NomadCompiledJobTemplate(this, cloud);
+            compiled = current;
+        }
+        return current;
+    }
+
+    /**
+     * Build the parameterized Job dispatched for each agent, in
+     * {@link JobMode#DISPATCH} mode.
+     *
+     * @param cloud the cloud the agents are started from
+     * @return the parameterized job of this template
+     */
+    public Job buildParameterized(NomadCloud cloud) {
+        return new NomadJobTemplateBuilder(this).buildParameterized(cloud);
+    }
+
+    /**
+     * Computes the digest of the specification of this template: all its
+     * settings but its name.
+     *
+     * @return the digest, in hexadecimal.
+     */
+    @Nonnull
+    public String getDigest() {
+        JSONArray spec = new JSONArray();
+        spec.add(String.valueOf(region));
+        spec.add(getDatacenters());
+        spec.add(String.valueOf(image));
+        spec.add(String.valueOf(command));
+        spec.add(String.valueOf(args));
+        spec.add(instanceCap);
+        spec.add(slaveConnectTimeout);
+        spec.add(idleMinutes);
+        spec.add(minIdle);
+        spec.add(maxIdleAge);
+        spec.add(String.valueOf(label));
+        spec.add(String.valueOf(nodeUsageMode));
+        spec.add(String.valueOf(jobMode));
+        spec.add(String.valueOf(resourcesCPU));
+        spec.add(String.valueOf(resourcesMemory));
+        spec.add(digestOf(getEnvVars()));
+        for (TaskTemplate task : getTaskGroups()) {
+            JSONArray taskSpec = new JSONArray();
+            taskSpec.add(String.valueOf(task.getName()));
+            taskSpec.add(String.valueOf(task.getImage()));
+            taskSpec.add(String.valueOf(task.getCommand()));
+            taskSpec.add(String.valueOf(task.getArgs()));
+            taskSpec.add(String.valueOf(task.getWorkingDir()));
+            taskSpec.add(String.valueOf(task.getResourcesCPU()));
+            taskSpec.add(String.valueOf(task.getResourceMemory()));
+            taskSpec.add(task.shouldDownloadAgentJar());
+            taskSpec.add(digestOf(task.getEnvVars()));
+            spec.add(taskSpec);
+        }
+        return Util.getDigestOf(spec.toString());
+    }
+
+    private static JSONArray digestOf(List<EnvVar> envVars) {
+        JSONArray array = new JSONArray();
+        for (EnvVar envVar : envVars) {
+            array.add(envVar.getKey());
+            array.add(envVar.getValue());
+        }
+        return array;
+    }
+
     public String getDescriptionForLogging() {
         return String.format("Agent specification [%s] (%s): %n%s",
                 getDisplayName(),
@@ -400,8 +608,11 @@ public class NomadJobTemplate extends AbstractDescribableImpl<NomadJobTemplate>
                 + (instanceCap == Integer.MAX_VALUE ? "" : ", instanceCap=" + instanceCap)
                 + (slaveConnectTimeout == DEFAULT_SLAVE_JENKINS_CONNECTION_TIMEOUT ? "" : ", slaveConnectTimeout=" + slaveConnectTimeout)
                 + (idleMinutes == 0 ? "" : ", idleMinutes=" + idleMinutes)
+                + (minIdle == 0 ? "" : ", minIdle=" + minIdle)
+                + (maxIdleAge == 0 ? "" : ", maxIdleAge=" + maxIdleAge)
                 + (label == null ? "" : ", label='" + label + '\'')
                 + (nodeUsageMode == null ? "" : ", nodeUsageMode=" + nodeUsageMode)
+                + (jobMode == null ? "" : ", jobMode=" + jobMode)
                 + (resourcesCPU == null ? "" : ", resourcesCpu='" + resourcesCPU + '\'')
                 + (resourcesMemory == null ? "" : ", resourcesMemory='" + resourcesMemory + '\'')
                 + (taskGroups == null || taskGroups.isEmpty() ? "" : ", taskGroups=" + taskGroups)
@@ -24,18 +24,9 @@
 package info.multani.jenkins.plugins.nomad;
 
 import com.hashicorp.nomad.apimodel.Job;
-import com.hashicorp.nomad.apimodel.RestartPolicy;
-import com.hashicorp.nomad.apimodel.Task;
-import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.apimodel.ParameterizedJobConfig;
 import static hudson.Util.replaceMacro;
-import info.multani.jenkins.plugins.nomad.model.EnvVar;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
-import org.apache.commons.lang.StringUtils;
 
 /**
  * Helper class to build Job from JobTemplate
@@ -44,6 +35,21 @@ public class NomadJobTemplateBuilder {
 
     private static final Logger LOGGER = Logger.getLogger(NomadJobTemplateBuilder.class.getName());
 
+    /**
+     * The dispatch meta key holding the name of the agent.
+     */
+    public static final String AGENT_NAME_META = "JENKINS_AGENT_NAME";
+
+    /**
+     * The dispatch meta key holding the JNLP secret of the agent.
+     */
+    public static final String SECRET_META = "JENKINS_SECRET";
+
+    /**
+     * The meta key holding the name of the template a job is started from.
+     */
+    public static final String TEMPLATE_META = "jenkins/template";
+
     private final NomadJobTemplate template;
 
     public NomadJobTemplateBuilder(NomadJobTemplate template) {
@@ -51,87 +57,28 @@ public class NomadJobTemplateBuilder {
     }
 
     public Job build(NomadSlave slave) {
-        ArrayList<TaskGroup> taskGroups = new ArrayList<>();
-
-        template.getTaskGroups().forEach((t) -> {
-            taskGroups.add(
-                    createTaskGroup(slave, t, template.getEnvVars())
-            );
-        });
-
-        if (taskGroups.isEmpty()) {
-            TaskTemplate task = TaskTemplate.defaultTask();
-            taskGroups.add(
-                    createTaskGroup(slave, task, template.getEnvVars())
-            );
-        }
-
-        NomadCloud cloud = slave.getNomadCloud();
-
-        Map<String, String> meta = new HashMap<>();
-        meta.putAll(cloud.getLabels());
-        meta.putAll(template.getLabelsMap());
-
-        Job job = new Job();
-        job.setMeta(meta);
-        job.setId(slave.getNodeName());
-        job.setName(slave.getNodeName());
-        job.setRegion(getRegion(cloud));
-        job.addDatacenters(getDatacenters(cloud));
-        job.setType("batch");
-        job.setTaskGroups(taskGroups);
-
-        return job;
-    }
-
-    private String getRegion(NomadCloud cloud) {
-        return template.getRegion() == null ? cloud.getRegion() : template.getRegion();
+        // Only the agent specific parts are filled in, the rest is computed
+        // once per template.
+        return template.getCompiled(slave.getNomadCloud())
+                .build(slave.getNodeName(), slave.getNodeName(), slave.getJnlpMac());
     }
 
-    private String[] getDatacenters(NomadCloud cloud) {
-        List<String> dc = template.getDatacenters();
-        if (dc.isEmpty()) {
-            dc = cloud.getDatacentersList();
-        }
-
-        return dc.toArray(new String[0]);
-    }
-
-    private TaskGroup createTaskGroup(NomadSlave slave, TaskTemplate taskTemplate, Collection<EnvVar> globalEnvVars) {
-        // Last-write wins map of environment variable names to values
-        HashMap<String, String> env = new HashMap<>();
-        NomadCloud cloud = slave.getNomadCloud();
-        String url = cloud.getJenkinsUrlOrDie();
-
-        // Default common environment variables for all the containers.
-        env.put("JENKINS_SECRET", slave.getComputer().getJnlpMac());
-        env.put("JENKINS_AGENT_NAME", slave.getComputer().getName());
-        env.put("JNLP_PROTOCOL_OPTS", "");
-        env.put("JENKINS_JNLP_URL", url + "/computer/" + slave.getNodeName() + "/slave-agent.jnlp");
-
-        env.put("JENKINS_URL", url);
-        if (!StringUtils.isBlank(cloud.getJenkinsTunnel())) {
-            env.put("JENKINS_TUNNEL", cloud.getJenkinsTunnel());
-        }
-
-        if (globalEnvVars != null) {
-            globalEnvVars.forEach(item
-                    -> env.put(item.getKey(), item.getValue())
-            );
-        }
-
-        TaskGroup taskGroup = new TaskGroup();
-        taskGroup.setName(substituteEnv(taskTemplate.getName()));
-
-        Task task = taskTemplate.build(slave, new HashMap<>(env));
-        taskGroup.addTasks(task);
-
-        RestartPolicy restartPolicy = new RestartPolicy()
-                .setMode("fail")
-                .setAttempts(0);
-        taskGroup.setRestartPolicy(restartPolicy);
-
-        return taskGroup;
+    /**
+     * Builds the parameterized job of the template. The agents are started by
+     * dispatching it, with their name and secret in the dispatch meta.
+     *
+     * @param cloud the cloud the agents are started from
+     * @return the Nomad job, named after the template.
+     */
+    public Job buildParameterized(NomadCloud cloud) {
+        // Nomad interpolates the dispatch meta in the job of each agent
+        Job job = template.getCompiled(cloud).build(template.getName(),
+                "${NOMAD_META_" + AGENT_NAME_META + "}",
+                "${NOMAD_META_" + SECRET_META + "}");
+        job.setParameterizedJob(new ParameterizedJobConfig()
+                .setPayload("forbidden")
+                .addMetaRequired(AGENT_NAME_META, SECRET_META));
+        return job;
     }
 
     public static String substituteEnv(String s) {
@@ -0,0 +1,93 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The templates of a cloud, indexed by label.
+ *
+ * An index is built for a given version of the templates, and is replaced as a
+ * whole once the templates change. The templates matching each label are only
+ * computed the first time the label is looked up: the provisioner asks for the
+ * same labels again and again.
+ *
+ * @see NomadJobTemplateSource#getVersion()
+ */
+class NomadJobTemplateIndex {
+
+    private final long version;
+
+    private final List<NomadJobTemplate> templates;
+
+    /**
+     * The templates having each label atom, in the order of the templates.
+     */
+    private final Map<LabelAtom, List<NomadJobTemplate>> byAtom = new HashMap<>();
+
+    /**
+     * The templates which can be used without label.
+     */
+    private final List<NomadJobTemplate> unlabeled = new ArrayList<>();
+
+    private final ConcurrentMap<Label, List<NomadJobTemplate>> matches = new ConcurrentHashMap<>();
+
+    NomadJobTemplateIndex(long version, @Nonnull List<NomadJobTemplate> templates) {
+        this.version = version;
+        this.templates = Collections.unmodifiableList(new ArrayList<>(templates));
+        for (NomadJobTemplate template : this.templates) {
+            for (LabelAtom atom : template.getLabelSet()) {
+                byAtom.computeIfAbsent(atom, a -> new ArrayList<>()).add(template);
+            }
+            if (template.getNodeUsageMode() == Node.Mode.NORMAL) {
+                unlabeled.add(template);
+            }
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    @Nonnull
+    List<NomadJobTemplate> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Returns the templates matching a label, in the order of the templates.
+     *
+     * @param label the label to match, or null for the builds without label
+     * @return the matching templates.
+     */
+    @Nonnull
+    List<NomadJobTemplate> match(@CheckForNull Label label) {
+        if (label == null) {
+            return Collections.unmodifiableList(unlabeled);
+        }
+        return matches.computeIfAbsent(label, this::compute);
+    }
+
+    private List<NomadJobTemplate> compute(Label label) {
+        if (label instanceof LabelAtom) {
+            return Collections.unmodifiableList(byAtom.getOrDefault(label, Collections.emptyList()));
+        }
+
+        List<NomadJobTemplate> result = new ArrayList<>();
+        for (NomadJobTemplate template : templates) {
+            if (label.matches(template.getLabelSet())) {
+                result.add(template);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+}
@@ -4,6 +4,7 @@ import hudson.ExtensionList;
 import hudson.ExtensionPoint;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.util.stream.Collectors.toList;
 import javax.annotation.Nonnull;
 
@@ -12,6 +13,8 @@ import javax.annotation.Nonnull;
  */
 public abstract class NomadJobTemplateSource implements ExtensionPoint {
 
+    private static final AtomicLong VERSION = new AtomicLong();
+
     public static List<NomadJobTemplate> getAll(@Nonnull NomadCloud cloud) {
         return ExtensionList.lookup(NomadJobTemplateSource.class)
                 .stream()
@@ -20,6 +23,25 @@ public abstract class NomadJobTemplateSource implements ExtensionPoint {
                 .collect(toList());
     }
 
+    /**
+     * Returns the version of the templates, incremented each time the
+     * templates of a source change.
+     *
+     * @return the current version of the templates.
+     */
+    public static long getVersion() {
+        return VERSION.get();
+    }
+
+    /**
+     * Notifies the clouds that the templates of a source changed. The sources
+     * must call it each time they add or remove templates, otherwise the
+     * clouds keep using the templates they have indexed.
+     */
+    public static void changed() {
+        VERSION.incrementAndGet();
+    }
+
     /**
      * The list of {@link NomadJobTemplate} contributed by this implementation.
      *
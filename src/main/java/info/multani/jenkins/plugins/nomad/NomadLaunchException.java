@@ -0,0 +1,56 @@
+package info.multani.jenkins.plugins.nomad;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Signals that Nomad won't run the job of an agent.
+ */
+class NomadLaunchException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why Nomad won't run the job.
+     */
+    enum Reason {
+        /**
+         * The evaluation of the job failed.
+         */
+        EVALUATION_FAILED,
+        /**
+         * The scheduler found no node to place the job on: not enough
+         * capacity, or no node matching the constraints.
+         */
+        PLACEMENT_FAILED,
+        /**
+         * The allocation of the job failed.
+         */
+        ALLOCATION_FAILED,
+        /**
+         * The node running the allocation of the job was lost.
+         */
+        ALLOCATION_LOST,
+        /**
+         * A task of the job couldn't be started: image pull, artifact
+         * download, driver or setup error.
+         */
+        TASK_FAILED
+    }
+
+    private final Reason reason;
+
+    NomadLaunchException(@Nonnull Reason reason, @Nonnull String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    @Nonnull
+    Reason getReason() {
+        return reason;
+    }
+
+    @Override
+    public String getMessage() {
+        return reason + ": " + super.getMessage();
+    }
+}
@@ -23,40 +23,72 @@
  */
 package info.multani.jenkins.plugins.nomad;
 
-import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableList;
 import com.hashicorp.nomad.apimodel.AllocationListStub;
 import com.hashicorp.nomad.apimodel.Job;
-import com.hashicorp.nomad.apimodel.TaskState;
+import com.hashicorp.nomad.apimodel.JobDispatchResponse;
 import com.hashicorp.nomad.javasdk.ErrorResponseException;
-import com.hashicorp.nomad.javasdk.EvaluationResponse;
-import com.hashicorp.nomad.javasdk.NomadApiClient;
-import com.hashicorp.nomad.javasdk.ServerQueryResponse;
 import hudson.AbortException;
+import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.slaves.JNLPLauncher;
 import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import static java.util.logging.Level.*;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
  * Launches on Nomad the specified {@link NomadComputer} instance.
+ *
+ * The launch runs in stages: the Nomad job is registered, then the launcher
+ * waits for its allocation to be running, then for the agent to connect. Each
+ * stage starts when the previous one completes, and no thread is blocked
+ * while waiting: the launch method returns right away.
  */
 public class NomadLauncher extends JNLPLauncher {
 
     private static final Logger LOGGER = Logger.getLogger(NomadLauncher.class.getName());
 
+    /**
+     * How long to wait, in seconds, for the Nomad job to be running.
+     */
+    private static final long ALLOCATION_TIMEOUT = Long
+            .getLong(NomadLauncher.class.getName() + ".allocationTimeout", 600);
+
+    /**
+     * Runs the timeouts and the checks of the launches. Its tasks never block.
+     */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(
+            Integer.getInteger(NomadLauncher.class.getName() + ".schedulerThreads", 2),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Nomad launcher scheduler"));
+
     private boolean launched;
 
+    /**
+     * The Nomad job of the agent, if it has been prepared before the launch.
+     */
+    private transient Job job;
+
+    /**
+     * The launch in progress, if any.
+     */
+    private transient volatile CompletableFuture<Void> launching;
+
     @DataBoundConstructor
     public NomadLauncher(String tunnel, String vmargs) {
         super(tunnel, vmargs);
@@ -68,13 +100,11 @@ public class NomadLauncher extends JNLPLauncher {
 
     @Override
     public boolean isLaunchSupported() {
-        return !launched;
+        return !launched && launching == null;
     }
 
     @Override
     public void launch(SlaveComputer computer, TaskListener listener) {
-        PrintStream logger = listener.getLogger();
-
         if (!(computer instanceof NomadComputer)) {
             throw new IllegalArgumentException("This Launcher can be used only with NomadComputer");
         }
@@ -91,179 +121,264 @@ public class NomadLauncher extends JNLPLauncher {
             return;
         }
 
-        NomadCloud cloud = slave.getNomadCloud();
-        final NomadJobTemplate unwrappedTemplate = slave.getTemplate();
-        try {
-            NomadApiClient client = cloud.connect();
-            Job job = getJobTemplate(slave, unwrappedTemplate);
-            String jobID = job.getId();
-
-            LOGGER.log(Level.FINE, "Creating Nomad job: {0}", jobID);
-
-            EvaluationResponse evaluation;
+        synchronized (this) {
+            if (launching != null) {
+                LOGGER.log(FINE, "Agent is already being launched: {0}", slave.getNodeName());
+                return;
+            }
+            // Until the launcher is done with it, whether it connects or fails
+            NomadInProvisioning.get().add(slave.getTemplate(), slave.getNodeName());
             try {
-                evaluation = client.getJobsApi().register(job);
-            } catch (ErrorResponseException exc) {
-                String msg = String.format("Unable to evaluate Nomad job '%s': %s", jobID, exc.getServerErrorMessage());
-                LOGGER.log(Level.SEVERE, msg, exc);
-                throw new AbortException(msg); // TODO: we should probably abort the build here, but AbortException doesn't do it.
+                launching = start(slave, listener.getLogger());
+            } catch (RuntimeException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                launching = failed;
             }
+        }
 
-            String evaluationID = evaluation.getValue();
-            LOGGER.log(INFO, "Registered Nomad job {0} with evaluation ID: {1}",
-                    new Object[]{jobID, evaluationID});
-            LOGGER.log(FINE, "Created Nomad job: {0}", jobID);
-
-            logger.printf("[Nomad] Registered Nomad job %s with evaluation ID %s%n",
-                    jobID, evaluationID);
-
-            // We need the job to be running and connected before returning
-            // otherwise this method keeps being called multiple times
-            List<String> validStates = ImmutableList.of("running");
-
-            int i = 0;
-            int j = 100; // wait 600 seconds
-
-            // TODO: wait for Job to be running
-//            List<ContainerStatus> containerStatuses = null;
-            String jobStatus = "<unknown>"; // keep the compiler happy
-            // wait for Job to be running
-            for (; i < j; i++) {
-                LOGGER.log(INFO, "Waiting for job to be scheduled ({1}/{2}): {0}", new Object[]{jobID, i, j});
-                logger.printf("Waiting for job to be scheduled (%2$s/%3$s): %1$s%n", jobID, i, j);
-
-                Thread.sleep(6000);
-
-                try {
-                    ServerQueryResponse<Job> response;
-                    response = client.getJobsApi().info(jobID);
-                    job = response.getValue();
-                } catch (ErrorResponseException ex) {
-                    throw new IllegalStateException("Unable to query Nomad job " + jobID + ": " + ex, ex);
+        // Finish the launch away from the threads completing the stages
+        launching.whenCompleteAsync((result, error) -> {
+            try {
+                if (error == null) {
+                    activate(computer, slave);
+                } else {
+                    fail(slave, unwrap(error), listener.getLogger());
                 }
+            } finally {
+                // Connected or failed, the agent is no longer in provisioning
+                NomadInProvisioning.get().remove(slave.getNodeName());
+                launching = null;
+            }
+        }, Computer.threadPoolForRemoting);
+    }
 
-                jobStatus = job.getStatus();
-
-                LOGGER.log(INFO, "Nomad job {0} is: {1}", new Object[]{jobID, jobStatus});
-                logger.printf("Nomad job %1$s is: %2$s%n", jobID, jobStatus);
+    private CompletableFuture<Void> start(NomadSlave slave, PrintStream logger) {
+        NomadCloud cloud = slave.getNomadCloud();
+        NomadJobTemplate template = slave.getTemplate();
+        AtomicLong stageStart = new AtomicLong();
+        return register(cloud, slave, template)
+                .thenCompose(registration -> {
+                    LOGGER.log(INFO, "Registered Nomad job {0} with evaluation ID: {1}",
+                            new Object[]{registration.jobID, registration.evaluationID});
+                    logger.printf("[Nomad] Registered Nomad job %s with evaluation ID %s%n",
+                            registration.jobID, registration.evaluationID);
+                    long plannedAt = slave.getPlannedAt();
+                    // Unknown once the agent was loaded again from disk
+                    stageStart.set(plannedAt == 0 ? System.currentTimeMillis()
+                            : record(cloud, template, NomadMetrics.Stage.PLAN_TO_REGISTER, plannedAt));
+                    return awaitAllocation(cloud, registration, logger);
+                })
+                .thenCompose(alloc -> {
+                    LOGGER.log(INFO, "Nomad job {0} is running in allocation {1}",
+                            new Object[]{alloc.getJobId(), alloc.getId()});
+                    logger.printf("Nomad job %1$s is running in allocation %2$s%n", alloc.getJobId(), alloc.getId());
+                    // Nomad tells when the allocation was created, in nanoseconds
+                    long placedAt = Math.max(stageStart.get(), TimeUnit.NANOSECONDS.toMillis(alloc.getCreateTime()));
+                    NomadMetrics.record(cloud, template, NomadMetrics.Stage.REGISTER_TO_PLACED, placedAt - stageStart.get());
+                    stageStart.set(record(cloud, template, NomadMetrics.Stage.PLACED_TO_RUNNING, placedAt));
+                    return awaitConnection(slave, template.getSlaveConnectTimeout(), alloc, logger);
+                })
+                .thenRun(() -> record(cloud, template, NomadMetrics.Stage.RUNNING_TO_ONLINE, stageStart.get()));
+    }
 
-                List<AllocationListStub> allocations;
-                try {
-                    ServerQueryResponse<List<AllocationListStub>> response;
-                    response = client.getJobsApi().allocations(jobID);
-                    allocations = response.getValue();
-                } catch (ErrorResponseException ex) {
-                    throw new IllegalStateException("Unable to find allocations for Nomad job " + jobID + ": " + ex, ex);
-                }
+    /**
+     * Records the duration of a stage ending now.
+     *
+     * @return the end of the stage.
+     */
+    private static long record(NomadCloud cloud, NomadJobTemplate template, NomadMetrics.Stage stage, long since) {
+        long now = System.currentTimeMillis();
+        NomadMetrics.record(cloud, template, stage, now - since);
+        return now;
+    }
 
-                if (allocations.isEmpty()) {
-                    LOGGER.log(FINE, "No allocations yet for for Nomad job {}", jobID);
-                    continue;
-                }
+    /**
+     * Registers, or dispatches, the Nomad job of the agent.
+     */
+    private CompletableFuture<Registration> register(NomadCloud cloud, NomadSlave slave, NomadJobTemplate template) {
+        String agentName = slave.getNodeName();
+        LOGGER.log(Level.FINE, "Creating Nomad job: {0}", agentName);
 
-                class AllocationComparator implements Comparator<AllocationListStub> {
+        CompletableFuture<Registration> registration;
+        try {
+            registration = submit(cloud, slave, template);
+        } catch (RuntimeException e) {
+            registration = new CompletableFuture<>();
+            registration.completeExceptionally(e);
+        }
 
-                    @Override
-                    public int compare(AllocationListStub a, AllocationListStub b) {
-                        // Sort by greater CreateIndex first. This should be the
-                        // last allocation created for this Nomad job.
-                        return b.getCreateIndex().compareTo(a.getCreateIndex());
-                    }
-                }
+        return registration.exceptionally(error -> {
+            Throwable cause = unwrap(error);
+            if (cause instanceof ErrorResponseException) {
+                String msg = String.format("Unable to evaluate Nomad job '%s': %s", agentName,
+                        ((ErrorResponseException) cause).getServerErrorMessage());
+                LOGGER.log(Level.SEVERE, msg, cause);
+                throw new CompletionException(new AbortException(msg));
+            }
+            throw new CompletionException(cause);
+        });
+    }
 
-                // TODO: if the lastAlloc ClientStatus is "failed" already, we can probably shutdown the check earlier.
-                AllocationListStub lastAlloc = allocations.stream()
-                        .sorted(new AllocationComparator())
-                        .findFirst()
-                        .get();
-
-                LOGGER.log(FINE, "Checking status of allocation {0} for Nomad job {1} (status={2})",
-                        new Object[]{lastAlloc.getId(), jobID, lastAlloc.getClientStatus()});
-                logger.printf("Checking status of allocation %1$s for Nomad job %2$s (status=%3$s)%n",
-                        lastAlloc.getId(), jobID, lastAlloc.getClientStatus());
-
-                List<Map.Entry<String, TaskState>> terminatedTasks = new ArrayList<>();
-                Boolean allContainersAreReady = true;
-                for (Map.Entry<String, TaskState> entry : lastAlloc.getTaskStates().entrySet()) {
-                    String taskName = entry.getKey();
-                    TaskState taskState = entry.getValue();
-
-                    if (!taskState.getState().equals("running")) {
-                        // Task is waiting for some reason
-                        LOGGER.log(INFO, "Task is not running {0} [{1}]: {2} (failed={3})",
-                                new Object[]{jobID, taskName, taskState.getState(), taskState.getFailed()});
-                        logger.printf("Task is not running %1$s [%2$s]: %3$s (failed=%4$s)%n",
-                                jobID, taskName, taskState.getState(), taskState.getFailed());
-                        // break;
+    private CompletableFuture<Registration> submit(NomadCloud cloud, NomadSlave slave, NomadJobTemplate template) {
+        String agentName = slave.getNodeName();
+        switch (template.getJobMode()) {
+            case DISPATCH:
+                return call(() -> {
+                    JobDispatchResponse dispatch = cloud.getParameterizedJob(template).dispatch(cloud.connect(), slave);
+                    // Remember the job to deregister when the agent is terminated
+                    slave.setJobID(dispatch.getDispatchedJobId());
+                    slave.save();
+                    return new Registration(dispatch.getDispatchedJobId(), null, dispatch.getEvalId());
+                }, cloud.getRegistrationExecutor());
+            case SHARED_JOB:
+                Job agentJob = getJob(slave, template);
+                String taskGroup = NomadSharedJob.groupName(agentName, agentJob.getTaskGroups().get(0).getName());
+                // The first shared job of the template with room left
+                for (int shard = 0; ; shard++) {
+                    NomadSharedJob sharedJob = cloud.getSharedJob(NomadSharedJob.jobID(template, shard));
+                    CompletableFuture<String> added = sharedJob.tryAdd(agentName, agentJob);
+                    if (added != null) {
+                        return added.thenApply(evaluationID -> {
+                            // Remember the job to remove the agent from
+                            slave.setJobID(sharedJob.getJobID());
+                            try {
+                                slave.save();
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                            return new Registration(sharedJob.getJobID(), taskGroup, evaluationID);
+                        });
                     }
-                    if (taskState.getState().equals("dead") && taskState.getFailed()) {
-                        terminatedTasks.add(entry);
-                    } else if (!taskState.getState().equals("running")) {
-                        allContainersAreReady = false;
-                    }
-                }
-
-                if (!terminatedTasks.isEmpty()) {
-                    List<String> tasks = terminatedTasks.stream()
-                            .map(entry -> entry.getKey())
-                            .collect(Collectors.toList());
-
-                    throw new IllegalStateException("Tasks have failed: " + tasks);
-                }
-
-                if (!allContainersAreReady) {
-                    continue;
                 }
+            default:
+                Job job = getJob(slave, template);
+                return call(() -> new Registration(job.getId(), null,
+                        cloud.connect().getJobsApi().register(job).getValue()),
+                        cloud.getRegistrationExecutor());
+        }
+    }
 
-                if (!jobStatus.equals("pending")) {
-                    break;
+    /**
+     * Waits for the allocation of the job to be running.
+     */
+    private CompletableFuture<AllocationListStub> awaitAllocation(NomadCloud cloud, Registration registration, PrintStream logger) {
+        LOGGER.log(INFO, "Waiting for job to be scheduled: {0}", registration.jobID);
+        logger.printf("Waiting for job to be scheduled: %s%n", registration.jobID);
+
+        CompletableFuture<AllocationListStub> allocation = cloud.getAllocationWatcher()
+                .watch(registration.jobID, registration.taskGroup);
+        ScheduledFuture<?> timeout = SCHEDULER.schedule(
+                () -> allocation.completeExceptionally(new TimeoutException("Nomad job " + registration.jobID
+                        + " is not running after " + ALLOCATION_TIMEOUT + " seconds")),
+                ALLOCATION_TIMEOUT, TimeUnit.SECONDS);
+        // Completing the future also stops following the job
+        allocation.whenComplete((alloc, error) -> timeout.cancel(false));
+
+        if (registration.evaluationID != null) {
+            // Fail fast if the job can't be placed
+            CompletableFuture<Void> evaluation = NomadEvaluationChecker.check(cloud,
+                    registration.evaluationID, registration.taskGroup);
+            evaluation.whenComplete((result, error) -> {
+                if (error != null) {
+                    allocation.completeExceptionally(unwrap(error));
                 }
-            }
+            });
+            allocation.whenComplete((alloc, error) -> evaluation.complete(null));
+        }
+        return allocation;
+    }
 
-            if (!validStates.contains(jobStatus)) {
-                throw new IllegalStateException("Nomad job " + jobID + " is not running after " + j + " attempts, status: " + jobStatus);
+    /**
+     * Waits for the agent to connect, checking every second.
+     */
+    private CompletableFuture<Void> awaitConnection(NomadSlave slave, int attempts, AllocationListStub alloc, PrintStream logger) {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        AtomicInteger attempt = new AtomicInteger();
+        ScheduledFuture<?> check = SCHEDULER.scheduleWithFixedDelay(() -> {
+            SlaveComputer computer = slave.getComputer();
+            int i = attempt.getAndIncrement();
+            if (computer == null) {
+                connected.completeExceptionally(new IllegalStateException("Node was deleted, computer is null"));
+            } else if (computer.isOnline()) {
+                connected.complete(null);
+            } else if (i >= attempts) {
+                connected.completeExceptionally(new IllegalStateException("Agent is not connected after "
+                        + attempts + " attempts, status: " + alloc.getClientStatus()));
+            } else {
+                LOGGER.log(INFO, "Waiting for agent to connect ({1}/{2}): {0}", new Object[]{alloc.getJobId(), i, attempts});
+                logger.printf("Waiting for agent to connect (%2$s/%3$s): %1$s%n", alloc.getJobId(), i, attempts);
             }
+        }, 0, 1, TimeUnit.SECONDS);
+        connected.whenComplete((result, error) -> check.cancel(false));
+        return connected;
+    }
 
-            j = unwrappedTemplate.getSlaveConnectTimeout();
-
-            // now wait for agent to be online
-            for (; i < j; i++) {
-                if (slave.getComputer() == null) {
-                    throw new IllegalStateException("Node was deleted, computer is null");
-                }
-                if (slave.getComputer().isOnline()) {
-                    break;
-                }
-                LOGGER.log(INFO, "Waiting for agent to connect ({1}/{2}): {0}", new Object[]{jobID, i, j});
-                logger.printf("Waiting for agent to connect (%2$s/%3$s): %1$s%n", jobID, i, j);
-                Thread.sleep(1000);
-            }
-            if (!slave.getComputer().isOnline()) {
-                throw new IllegalStateException("Agent is not connected after " + j + " attempts, status: " + jobStatus);
-            }
-            computer.setAcceptingTasks(true);
-        } catch (Throwable ex) {
-            LOGGER.log(Level.WARNING, String.format("Error in provisioning; agent=%s, template=%s", slave, unwrappedTemplate), ex);
-            LOGGER.log(Level.FINER, "Removing Jenkins node: {0}", slave.getNodeName());
-            try {
-                slave.terminate();
-            } catch (IOException | InterruptedException e) {
-                LOGGER.log(Level.WARNING, "Unable to remove Jenkins node", e);
-            }
-            throw Throwables.propagate(ex);
-        }
+    private void activate(SlaveComputer computer, NomadSlave slave) {
+        computer.setAcceptingTasks(true);
         launched = true;
         try {
             // We need to persist the "launched" setting...
             slave.save();
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Could not save() agent: " + e.getMessage(), e);
-        } catch (Exception ex) {
-            Logger.getLogger(NomadLauncher.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    private Job getJobTemplate(NomadSlave slave, NomadJobTemplate template) {
-        return template == null ? null : template.build(slave);
+    private void fail(NomadSlave slave, Throwable error, PrintStream logger) {
+        LOGGER.log(Level.WARNING, String.format("Error in provisioning; agent=%s, template=%s", slave, slave.getTemplate()), error);
+        logger.printf("[Nomad] Unable to launch agent %s: %s%n", slave.getNodeName(), error.getMessage());
+        LOGGER.log(Level.FINER, "Removing Jenkins node: {0}", slave.getNodeName());
+        try {
+            slave.terminate();
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Unable to remove Jenkins node", e);
+        }
+    }
+
+    /**
+     * Prepares the Nomad job of the agent before it's launched.
+     *
+     * @param job the Nomad job to register when the agent is launched
+     */
+    void setJob(Job job) {
+        this.job = job;
+    }
+
+    private Job getJob(NomadSlave slave, NomadJobTemplate template) {
+        return job != null ? job : template.build(slave);
+    }
+
+    /**
+     * Runs a blocking call to Nomad on the given executor.
+     */
+    private static <T> CompletableFuture<T> call(Callable<T> task, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * The Nomad job, and task group, an agent runs in.
+     */
+    private static final class Registration {
+
+        private final String jobID;
+        private final String taskGroup;
+        private final String evaluationID;
+
+        Registration(String jobID, String taskGroup, String evaluationID) {
+            this.jobID = jobID;
+            this.taskGroup = taskGroup;
+            this.evaluationID = evaluationID;
+        }
     }
 }
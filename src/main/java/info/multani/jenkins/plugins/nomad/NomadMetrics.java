@@ -0,0 +1,153 @@
+package info.multani.jenkins.plugins.nomad;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Durations of the stages of the life of the agents, per template.
+ *
+ * Each stage has a histogram with fixed buckets, so recording a duration
+ * doesn't allocate nor lock.
+ *
+ * @see NomadMetricsAction
+ */
+final class NomadMetrics {
+
+    /**
+     * The stages of the life of an agent.
+     */
+    enum Stage {
+        /**
+         * From the oldest item waiting in the queue for the label, to the
+         * agent being planned.
+         */
+        QUEUE_TO_PLAN,
+        /**
+         * From the agent being planned, to its Nomad job being registered.
+         */
+        PLAN_TO_REGISTER,
+        /**
+         * From the job being registered, to its allocation being created.
+         */
+        REGISTER_TO_PLACED,
+        /**
+         * From the allocation being created, to all its tasks running.
+         */
+        PLACED_TO_RUNNING,
+        /**
+         * From the tasks running, to the agent being connected.
+         */
+        RUNNING_TO_ONLINE,
+        /**
+         * From the agent being terminated, to its Nomad job being
+         * deregistered.
+         */
+        TERMINATE_TO_DEREGISTERED
+    }
+
+    /**
+     * The key of the templates which aren't defined in a cloud, such as the
+     * templates of the pipelines: each of them has its own name.
+     */
+    static final String DYNAMIC_TEMPLATES = "(dynamic)";
+
+    /**
+     * The upper bounds of the buckets, in milliseconds. The last bucket has no
+     * upper bound.
+     */
+    private static final long[] BOUNDS = {
+        100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 600000
+    };
+
+    private static final ConcurrentMap<String, Map<Stage, Histogram>> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private NomadMetrics() {
+    }
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param cloud the cloud of the agent
+     * @param template the template of the agent
+     * @param stage the stage
+     * @param millis the duration of the stage, in milliseconds
+     */
+    static void record(@Nonnull NomadCloud cloud, @CheckForNull NomadJobTemplate template, @Nonnull Stage stage, long millis) {
+        HISTOGRAMS.computeIfAbsent(keyOf(cloud, template), key -> {
+            Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+            for (Stage s : Stage.values()) {
+                histograms.put(s, new Histogram());
+            }
+            return Collections.unmodifiableMap(histograms);
+        }).get(stage).record(Math.max(0, millis));
+    }
+
+    private static String keyOf(NomadCloud cloud, @CheckForNull NomadJobTemplate template) {
+        if (template == null || template.getName() == null || !cloud.getTemplates().contains(template)) {
+            return cloud.name + "/" + DYNAMIC_TEMPLATES;
+        }
+        return cloud.name + "/" + template.getName();
+    }
+
+    /**
+     * Returns the histograms of all the templates, as JSON.
+     *
+     * @return the histograms, indexed by cloud and template name, then by
+     * stage.
+     */
+    @Nonnull
+    static JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("bucketUpperBoundsMillis", JSONArray.fromObject(BOUNDS));
+
+        JSONObject templates = new JSONObject();
+        HISTOGRAMS.forEach((key, histograms) -> {
+            JSONObject stages = new JSONObject();
+            histograms.forEach((stage, histogram) -> stages.put(stage.name(), histogram.toJSON()));
+            templates.put(key, stages);
+        });
+        json.put("templates", templates);
+        return json;
+    }
+
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(millis);
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        JSONObject toJSON() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            JSONObject json = new JSONObject();
+            json.put("count", count.get());
+            json.put("sumMillis", sum.get());
+            json.put("maxMillis", max.get());
+            json.put("buckets", JSONArray.fromObject(counts));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Exposes the durations of the stages of the life of the Nomad agents, as
+ * JSON, at {@code /nomad-metrics/}.
+ *
+ * @see NomadMetrics
+ */
+@Extension
+public class NomadMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        // Not shown in the UI
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Nomad metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "nomad-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(NomadMetrics.toJSON().toString(2));
+    }
+}
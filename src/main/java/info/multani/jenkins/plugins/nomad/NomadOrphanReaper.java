@@ -0,0 +1,200 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobListStub;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.javasdk.NomadException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Reconciles the Nomad jobs and the Jenkins agents of the Nomad clouds.
+ *
+ * Each cycle lists the jobs of each cloud once, and compares them with the
+ * agents of Jenkins:
+ * <ul>
+ * <li>the live jobs started by Jenkins without any agent left, after a crash
+ * of Jenkins or a failed termination, are deregistered;</li>
+ * <li>the offline agents whose job is gone are removed.</li>
+ * </ul>
+ * Both are only removed once seen in two cycles in a row, so the agents being
+ * started or stopped in the meantime are left alone.
+ */
+@Extension
+public class NomadOrphanReaper extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadOrphanReaper.class.getName());
+
+    /**
+     * How often, in minutes, the jobs are reconciled.
+     */
+    private static final long RECURRENCE_PERIOD = Long
+            .getLong(NomadOrphanReaper.class.getName() + ".recurrencePeriod", 5);
+
+    /**
+     * The orphan jobs and agents seen in the previous cycle, per cloud.
+     */
+    private final Map<String, Set<String>> orphanJobs = new HashMap<>();
+    private final Map<String, Set<String>> orphanNodes = new HashMap<>();
+
+    public NomadOrphanReaper() {
+        super("Nomad orphan reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(RECURRENCE_PERIOD);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins jenkins = Jenkins.getInstance();
+
+        // The jobs which belong to Jenkins: the ones of the agents, of any
+        // cloud, and the shared and parameterized jobs named after the
+        // templates.
+        Set<String> known = new HashSet<>();
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof NomadSlave) {
+                known.add(((NomadSlave) node).getJobID());
+            }
+        }
+        for (Cloud cloud : jenkins.clouds) {
+            if (cloud instanceof NomadCloud) {
+                for (NomadJobTemplate template : ((NomadCloud) cloud).getAllTemplates()) {
+                    known.add(template.getName());
+                }
+            }
+        }
+
+        for (Cloud cloud : jenkins.clouds) {
+            if (cloud instanceof NomadCloud) {
+                try {
+                    reconcile((NomadCloud) cloud, known, listener);
+                } catch (IOException | NomadException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, String.format("Unable to reconcile the jobs of cloud %s", cloud.name), e);
+                }
+            }
+        }
+    }
+
+    private void reconcile(NomadCloud cloud, Set<String> known, TaskListener listener)
+            throws IOException, NomadException {
+        List<JobListStub> jobs = cloud.connect().getJobsApi().list().getValue();
+        Map<String, JobListStub> byID = new HashMap<>();
+        for (JobListStub job : jobs) {
+            byID.put(job.getId(), job);
+        }
+
+        // Live jobs without any agent, but the ones of the image warmer
+        Set<String> jobCandidates = new HashSet<>();
+        for (JobListStub job : jobs) {
+            if (!"dead".equals(job.getStatus()) && !known.contains(job.getId())
+                    && !job.getId().startsWith(NomadImageWarmer.JOB_PREFIX)) {
+                jobCandidates.add(job.getId());
+            }
+        }
+        Set<String> previousJobs = orphanJobs.getOrDefault(cloud.name, new HashSet<>());
+        for (String jobID : jobCandidates) {
+            if (previousJobs.contains(jobID) && isStartedBy(cloud, jobID)) {
+                LOGGER.log(Level.INFO, "Deregistering orphan job {0} from cloud {1}", new Object[]{jobID, cloud.name});
+                listener.getLogger().printf("Deregistering orphan job %s from cloud %s%n", jobID, cloud.name);
+                cloud.deregisterJob(jobID);
+            }
+        }
+        jobCandidates.removeAll(previousJobs);
+        orphanJobs.put(cloud.name, jobCandidates);
+
+        // Offline agents without any live job
+        Set<String> nodeCandidates = new HashSet<>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof NomadSlave && isOrphan(cloud, (NomadSlave) node, byID)) {
+                nodeCandidates.add(node.getNodeName());
+            }
+        }
+        Set<String> previousNodes = orphanNodes.getOrDefault(cloud.name, new HashSet<>());
+        for (String name : nodeCandidates) {
+            Node node = Jenkins.getInstance().getNode(name);
+            if (previousNodes.contains(name) && node instanceof NomadSlave
+                    && isOrphan(cloud, (NomadSlave) node, byID)) {
+                LOGGER.log(Level.INFO, "Removing agent {0} of cloud {1}: its Nomad job is gone",
+                        new Object[]{name, cloud.name});
+                listener.getLogger().printf("Removing agent %s of cloud %s%n", name, cloud.name);
+                try {
+                    ((NomadSlave) node).terminate();
+                } catch (InterruptedException | IOException e) {
+                    LOGGER.log(Level.WARNING, String.format("Unable to remove agent %s", name), e);
+                }
+            }
+        }
+        nodeCandidates.removeAll(previousNodes);
+        orphanNodes.put(cloud.name, nodeCandidates);
+    }
+
+    /**
+     * Tells whether an agent of the cloud is offline, and its job is gone.
+     */
+    private static boolean isOrphan(NomadCloud cloud, NomadSlave slave, Map<String, JobListStub> jobs) {
+        if (!cloud.name.equals(slave.getCloudName())) {
+            return false;
+        }
+        NomadJobTemplate template = slave.getTemplate();
+        if (template != null && template.getJobMode() == NomadJobTemplate.JobMode.SHARED_JOB) {
+            // The job is shared with other agents
+            return false;
+        }
+        if (NomadInProvisioning.get().contains(slave.getNodeName())) {
+            return false;
+        }
+        Computer computer = slave.toComputer();
+        if (computer != null && computer.isOnline()) {
+            return false;
+        }
+        JobListStub job = jobs.get(slave.getJobID());
+        return job == null || "dead".equals(job.getStatus());
+    }
+
+    /**
+     * Tells whether a job was started by a cloud: the list of the jobs doesn't
+     * have their meta, so only the jobs about to be removed are checked. The
+     * job must have the labels of the cloud, and its agent must connect to
+     * this Jenkins.
+     */
+    private static boolean isStartedBy(NomadCloud cloud, String jobID) throws IOException, NomadException {
+        Job job = cloud.connect().getJobsApi().info(jobID).getValue();
+        Map<String, String> meta = job.getMeta();
+        if (meta == null || !meta.entrySet().containsAll(cloud.getLabels().entrySet())) {
+            return false;
+        }
+        String url = cloud.getJenkinsUrlOrDie();
+        if (job.getTaskGroups() != null) {
+            for (TaskGroup group : job.getTaskGroups()) {
+                if (group.getTasks() == null) {
+                    continue;
+                }
+                for (Task task : group.getTasks()) {
+                    if (task.getEnv() != null && Objects.equals(url, task.getEnv().get("JENKINS_URL"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobDispatchResponse;
+import com.hashicorp.nomad.javasdk.EvaluationResponse;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The parameterized Nomad job of a template, dispatched for each agent.
+ *
+ * The job is only registered again when the template changes: starting an
+ * agent then only sends its name and secret to Nomad, instead of the whole
+ * job.
+ */
+class NomadParameterizedJob {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadParameterizedJob.class.getName());
+
+    private final NomadCloud cloud;
+
+    private final String jobID;
+
+    /**
+     * The job last registered in Nomad, if any.
+     */
+    @CheckForNull
+    private String registered;
+
+    /**
+     * The compiled template the registered job was built from: the job only
+     * needs to be built again once the template or the cloud changed.
+     */
+    @CheckForNull
+    private NomadCompiledJobTemplate registeredFrom;
+
+    NomadParameterizedJob(@Nonnull NomadCloud cloud, @Nonnull String jobID) {
+        this.cloud = cloud;
+        this.jobID = jobID;
+    }
+
+    @Nonnull
+    String getJobID() {
+        return jobID;
+    }
+
+    /**
+     * Starts an agent by dispatching the job, registering the job first if
+     * needed.
+     *
+     * @param client the client to send the requests with
+     * @param slave the agent to start
+     * @return the ID of the dispatched job and of its evaluation.
+     */
+    @Nonnull
+    JobDispatchResponse dispatch(@Nonnull NomadApiClient client, @Nonnull NomadSlave slave)
+            throws IOException, NomadException {
+        register(client, slave.getTemplate());
+
+        Map<String, String> meta = new HashMap<>();
+        meta.put(NomadJobTemplateBuilder.AGENT_NAME_META, slave.getNodeName());
+        meta.put(NomadJobTemplateBuilder.SECRET_META, slave.getJnlpMac());
+        JobDispatchResponse response = client.getJobsApi().dispatch(jobID, meta, null).getValue();
+
+        LOGGER.log(Level.FINE, "Dispatched Nomad job {0} for agent {1} as {2}",
+                new Object[]{jobID, slave.getNodeName(), response.getDispatchedJobId()});
+        return response;
+    }
+
+    private synchronized void register(NomadApiClient client, NomadJobTemplate template)
+            throws IOException, NomadException {
+        NomadCompiledJobTemplate compiled = template.getCompiled(cloud);
+        if (compiled == registeredFrom) {
+            return;
+        }
+
+        Job job = template.buildParameterized(cloud);
+        // The API objects are printed as JSON: a template saved again
+        // without changes gives the same job
+        String spec = job.toString();
+        if (!spec.equals(registered)) {
+            EvaluationResponse response = client.getJobsApi().register(job);
+            registered = spec;
+            LOGGER.log(Level.INFO, "Registered parameterized Nomad job {0} with evaluation ID: {1}",
+                    new Object[]{jobID, response.getValue()});
+        }
+        registeredFrom = compiled;
+    }
+}
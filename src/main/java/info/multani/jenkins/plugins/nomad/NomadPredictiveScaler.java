@@ -0,0 +1,156 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.Cloud;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+
+/**
+ * Starts agents ahead of the demand, for the clouds with predictive
+ * provisioning.
+ *
+ * The arrivals of the items in the queue are counted per label, per minute.
+ * Every minute, the arrivals expected over the next minutes are forecast from
+ * that history, and that many agents are kept idle or starting, on top of the
+ * warm pool of the templates.
+ *
+ * @see NomadCloud#isPredictiveProvisioning()
+ */
+@Extension
+public class NomadPredictiveScaler extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadPredictiveScaler.class.getName());
+
+    /**
+     * How many minutes of arrivals are kept.
+     */
+    private static final int HISTORY = Integer
+            .getInteger(NomadPredictiveScaler.class.getName() + ".history", 60);
+
+    /**
+     * How many minutes ahead the arrivals are forecast. This should be about
+     * the time it takes to start an agent.
+     */
+    private static final int HORIZON = Integer
+            .getInteger(NomadPredictiveScaler.class.getName() + ".horizon", 5);
+
+    /**
+     * The arrivals in the queue, indexed by label expression.
+     */
+    private static final ConcurrentMap<String, ArrivalHistory> ARRIVALS = new ConcurrentHashMap<>();
+
+    /**
+     * The last forecast number of agents needed, indexed by cloud and
+     * template name.
+     */
+    private static volatile Map<String, Integer> forecasts = Collections.emptyMap();
+
+    public NomadPredictiveScaler() {
+        super("Nomad predictive scaler");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return ArrivalHistory.BUCKET_MILLIS;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        long now = System.currentTimeMillis();
+        ARRIVALS.entrySet().removeIf(entry -> entry.getValue().isEmpty(now));
+
+        Map<String, Integer> newForecasts = new HashMap<>();
+        for (Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof NomadCloud) || !((NomadCloud) c).isPredictiveProvisioning()) {
+                continue;
+            }
+            NomadCloud cloud = (NomadCloud) c;
+
+            Map<NomadJobTemplate, Double> demand = new HashMap<>();
+            ARRIVALS.forEach((expression, history) -> {
+                Label label = expression.isEmpty() ? null : Jenkins.getInstance().getLabel(expression);
+                NomadJobTemplate template = cloud.getTemplate(label);
+                if (template != null) {
+                    demand.merge(template, history.forecast(now, HORIZON), Double::sum);
+                }
+            });
+
+            demand.forEach((template, arrivals) -> {
+                int agents = (int) Math.round(arrivals);
+                LOGGER.log(Level.FINE, "Forecast {0} arrivals in {1} minutes for template {2} of cloud {3}",
+                        new Object[]{arrivals, HORIZON, template.getName(), cloud.name});
+                if (agents > 0) {
+                    newForecasts.put(key(cloud, template), agents);
+                }
+            });
+        }
+        forecasts = newForecasts;
+
+        for (Cloud c : Jenkins.getInstance().clouds) {
+            if (c instanceof NomadCloud && ((NomadCloud) c).isPredictiveProvisioning()) {
+                NomadCloud cloud = (NomadCloud) c;
+                for (NomadJobTemplate template : cloud.getAllTemplates()) {
+                    if (newForecasts.containsKey(key(cloud, template))) {
+                        NomadWarmPool.replenish(cloud, template);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of agents of a template expected to be needed in the
+     * next minutes.
+     *
+     * @param cloud the cloud the template belongs to
+     * @param template the template
+     * @return the forecast number of agents, 0 if the cloud doesn't use
+     * predictive provisioning.
+     */
+    static int getForecast(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template) {
+        return forecasts.getOrDefault(key(cloud, template), 0);
+    }
+
+    private static String key(NomadCloud cloud, NomadJobTemplate template) {
+        return cloud.name + '\0' + template.getName();
+    }
+
+    /**
+     * Counts the items entering the queue.
+     */
+    @Extension
+    public static class Arrivals extends QueueListener {
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            if (!isEnabled()) {
+                return;
+            }
+            Label label = wi.getAssignedLabel();
+            String expression = label == null ? "" : label.getExpression();
+            ARRIVALS.computeIfAbsent(expression, e -> new ArrivalHistory(HISTORY))
+                    .record(System.currentTimeMillis());
+        }
+
+        private static boolean isEnabled() {
+            for (Cloud cloud : Jenkins.getInstance().clouds) {
+                if (cloud instanceof NomadCloud && ((NomadCloud) cloud).isPredictiveProvisioning()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
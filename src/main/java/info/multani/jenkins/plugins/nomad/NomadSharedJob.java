@@ -0,0 +1,278 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobListStub;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.javasdk.EvaluationResponse;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * A long-lived Nomad job running all the agents of a template.
+ *
+ * Each agent gets its own task groups in the job, with its own name and
+ * secret. Adding or removing agents updates the job: Nomad only places or
+ * stops the allocations of the task groups which changed, and several agents
+ * added at once are placed by a single evaluation.
+ *
+ * The updates are coalesced: the agents added or removed within a short
+ * window, or while the job is being registered, are sent to Nomad with the
+ * same registration. As each registration sends the whole job, a job runs a
+ * bounded number of agents: the next agents of the template go to another
+ * shared job.
+ */
+class NomadSharedJob {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadSharedJob.class.getName());
+
+    /**
+     * The meta key storing the name of the agent a task group belongs to.
+     */
+    static final String AGENT_META = "jenkins/agent";
+
+    /**
+     * How long, in milliseconds, the changes are collected before the job is
+     * registered again.
+     */
+    private static final long COALESCING_WINDOW = Long
+            .getLong(NomadSharedJob.class.getName() + ".coalescingWindow", 200);
+
+    /**
+     * Maximum number of agents added to a shared job.
+     */
+    static final int MAX_AGENTS = Integer
+            .getInteger(NomadSharedJob.class.getName() + ".maxAgents", 100);
+
+    private final NomadCloud cloud;
+
+    private final String jobID;
+
+    /**
+     * The job the settings of the shared job are copied from.
+     */
+    private Job spec;
+
+    /**
+     * The task groups of each agent, indexed by agent name.
+     */
+    private final Map<String, List<TaskGroup>> agents = new LinkedHashMap<>();
+
+    private List<CompletableFuture<String>> waiting = new ArrayList<>();
+
+    private boolean loaded;
+
+    private boolean dirty;
+
+    private boolean scheduled;
+
+    NomadSharedJob(@Nonnull NomadCloud cloud, @Nonnull String jobID) {
+        this.cloud = cloud;
+        this.jobID = jobID;
+    }
+
+    @Nonnull
+    String getJobID() {
+        return jobID;
+    }
+
+    /**
+     * Returns the name of a task group of an agent in the shared job.
+     *
+     * @param agentName the name of the agent
+     * @param taskGroup the name of the task group in the job of the agent
+     * @return the name of the task group in the shared job.
+     */
+    @Nonnull
+    static String groupName(@Nonnull String agentName, @Nonnull String taskGroup) {
+        return agentName + "-" + taskGroup;
+    }
+
+    /**
+     * Returns the ID of a shared job of a template.
+     *
+     * @param template the template of the agents
+     * @param shard the number of the shared job, from 0
+     * @return the ID of the job: the name of the template for the first one.
+     */
+    @Nonnull
+    static String jobID(@Nonnull NomadJobTemplate template, int shard) {
+        return shard == 0 ? template.getName() : template.getName() + "-" + shard;
+    }
+
+    /**
+     * Adds an agent to the shared job, unless it runs as many agents as
+     * allowed already.
+     *
+     * @param agentName the name of the agent
+     * @param agentJob the job which would run the agent on its own
+     * @return a future completed with the ID of the evaluation placing the
+     * agent, or null if the job is full.
+     */
+    @CheckForNull
+    synchronized CompletableFuture<String> tryAdd(@Nonnull String agentName, @Nonnull Job agentJob) {
+        if (agents.size() >= MAX_AGENTS && !agents.containsKey(agentName)) {
+            return null;
+        }
+        List<TaskGroup> groups = new ArrayList<>();
+        for (TaskGroup group : agentJob.getTaskGroups()) {
+            Map<String, String> meta = new HashMap<>();
+            if (group.getMeta() != null) {
+                meta.putAll(group.getMeta());
+            }
+            meta.put(AGENT_META, agentName);
+            group.setName(groupName(agentName, group.getName()));
+            group.setCount(1);
+            group.setMeta(meta);
+            groups.add(group);
+        }
+        spec = agentJob;
+        agents.put(agentName, groups);
+        return schedule();
+    }
+
+    /**
+     * Removes an agent from the shared job. The job is deregistered once it
+     * doesn't run any agent anymore.
+     *
+     * @param agentName the name of the agent
+     * @return a future completed with the ID of the evaluation stopping the
+     * agent.
+     */
+    @Nonnull
+    synchronized CompletableFuture<String> remove(@Nonnull String agentName) {
+        agents.remove(agentName);
+        return schedule();
+    }
+
+    private CompletableFuture<String> schedule() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        waiting.add(future);
+        dirty = true;
+        if (!scheduled) {
+            scheduled = true;
+            flushLater();
+        }
+        return future;
+    }
+
+    private void flushLater() {
+        Timer.get().schedule(() -> cloud.getRegistrationExecutor().submit(this::flush),
+                COALESCING_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the changes to Nomad, then the next ones after the coalescing
+     * window, until there's no change left. Only one flush runs at a time, so
+     * the registrations are sent in order.
+     */
+    private void flush() {
+        List<CompletableFuture<String>> flushed;
+        synchronized (this) {
+            dirty = false;
+            flushed = waiting;
+            waiting = new ArrayList<>();
+        }
+
+        try {
+            NomadApiClient client = cloud.connect();
+            load(client);
+            String evaluationID = send(client);
+            flushed.forEach(future -> future.complete(evaluationID));
+        } catch (IOException | NomadException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, String.format("Unable to update shared Nomad job %s", jobID), e);
+            flushed.forEach(future -> future.completeExceptionally(e));
+        }
+
+        synchronized (this) {
+            if (dirty) {
+                flushLater();
+            } else {
+                scheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Recovers the agents still running in the job, the first time only.
+     * Otherwise the first registration after a restart would stop them.
+     */
+    private void load(NomadApiClient client) throws IOException, NomadException {
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+        }
+
+        Job existing = null;
+        for (JobListStub stub : client.getJobsApi().list(jobID).getValue()) {
+            if (jobID.equals(stub.getId()) && !"dead".equals(stub.getStatus())) {
+                existing = client.getJobsApi().info(jobID).getValue();
+            }
+        }
+
+        Map<String, List<TaskGroup>> running = new LinkedHashMap<>();
+        if (existing != null && existing.getTaskGroups() != null) {
+            for (TaskGroup group : existing.getTaskGroups()) {
+                String agentName = group.getMeta() == null ? null : group.getMeta().get(AGENT_META);
+                if (agentName != null && Jenkins.getInstance().getNode(agentName) != null) {
+                    running.computeIfAbsent(agentName, name -> new ArrayList<>()).add(group);
+                }
+            }
+        }
+
+        synchronized (this) {
+            running.forEach(agents::putIfAbsent);
+            if (spec == null) {
+                spec = existing;
+            }
+            loaded = true;
+        }
+        LOGGER.log(Level.FINE, "Recovered {0} agents from shared Nomad job {1}",
+                new Object[]{running.size(), jobID});
+    }
+
+    private String send(NomadApiClient client) throws IOException, NomadException {
+        Job job;
+        synchronized (this) {
+            if (agents.isEmpty() || spec == null) {
+                job = null;
+            } else {
+                job = new Job();
+                job.setId(jobID);
+                job.setName(jobID);
+                job.setRegion(spec.getRegion());
+                job.setDatacenters(spec.getDatacenters());
+                job.setMeta(spec.getMeta());
+                job.setType("batch");
+                List<TaskGroup> groups = new ArrayList<>();
+                agents.values().forEach(groups::addAll);
+                job.setTaskGroups(groups);
+            }
+        }
+
+        EvaluationResponse response;
+        if (job == null) {
+            LOGGER.log(Level.FINE, "Deregistering shared Nomad job {0}", jobID);
+            response = client.getJobsApi().deregister(jobID);
+        } else {
+            LOGGER.log(Level.FINE, "Registering shared Nomad job {0} with {1} task groups",
+                    new Object[]{jobID, job.getTaskGroups().size()});
+            response = client.getJobsApi().register(job);
+        }
+        return response.getValue();
+    }
+}
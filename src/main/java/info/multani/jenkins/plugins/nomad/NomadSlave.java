@@ -1,8 +1,5 @@
 package info.multani.jenkins.plugins.nomad;
 
-import com.hashicorp.nomad.javasdk.EvaluationResponse;
-import com.hashicorp.nomad.javasdk.NomadApiClient;
-import com.hashicorp.nomad.javasdk.NomadException;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.console.ModelHyperlinkNote;
@@ -20,17 +17,24 @@ import hudson.slaves.CloudRetentionStrategy;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.OfflineCause;
 import hudson.slaves.RetentionStrategy;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import info.multani.jenkins.plugins.nomad.pipeline.NomadJobTemplateStep;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.Future;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import jenkins.security.MasterToSlaveCallable;
+import jenkins.slaves.JnlpSlaveAgentProtocol;
+import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.jenkinsci.plugins.durabletask.executors.OnceRetentionStrategy;
@@ -44,8 +48,31 @@ public class NomadSlave extends AbstractCloudSlave {
     private static final Integer DISCONNECTION_TIMEOUT = Integer
             .getInteger(NomadSlave.class.getName() + ".disconnectionTimeout", 5);
 
+    /**
+     * Maximum number of agents disconnected at the same time, and of agents
+     * waiting for their turn. Beyond, the agents are disconnected by the
+     * caller of {@link #terminate()}.
+     */
+    private static final int MAX_TERMINATIONS = Integer
+            .getInteger(NomadSlave.class.getName() + ".maxTerminations", 8);
+
+    private static final int MAX_PENDING_TERMINATIONS = Integer
+            .getInteger(NomadSlave.class.getName() + ".maxPendingTerminations", 256);
+
+    private static final ThreadPoolExecutor TERMINATION_EXECUTOR = new ThreadPoolExecutor(
+            MAX_TERMINATIONS, MAX_TERMINATIONS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_TERMINATIONS),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Nomad agent termination"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        TERMINATION_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private static final long serialVersionUID = -8642936855413034232L;
 
+    private static final String NAME_FORMAT = "%s-%s";
+
     /**
      * The resource bundle reference
      */
@@ -55,10 +82,46 @@ public class NomadSlave extends AbstractCloudSlave {
     private final NomadJobTemplate template;
     private transient Set<Queue.Executable> executables = new HashSet<>();
 
+    /**
+     * The ID of the Nomad job running the agent, when it's not named after the
+     * agent.
+     */
+    private String jobID;
+
+    /**
+     * When the agent was planned, in milliseconds, or 0 if it was loaded
+     * again from disk since.
+     */
+    private transient long plannedAt = System.currentTimeMillis();
+
     public NomadJobTemplate getTemplate() {
         return template;
     }
 
+    /**
+     * Returns the ID of the Nomad job running this agent.
+     *
+     * @return the ID of the dispatched job in
+     * {@link NomadJobTemplate.JobMode#DISPATCH} mode, of the shared job in
+     * {@link NomadJobTemplate.JobMode#SHARED_JOB} mode, the name of the agent
+     * otherwise.
+     */
+    @Nonnull
+    public String getJobID() {
+        return jobID == null ? name : jobID;
+    }
+
+    void setJobID(String jobID) {
+        this.jobID = jobID;
+    }
+
+    /**
+     * @return when the agent was planned, in milliseconds, or 0 if unknown.
+     */
+    long getPlannedAt() {
+        return plannedAt;
+    }
+
     protected NomadSlave(String name, NomadJobTemplate template, String nodeDescription, String cloudName, String labelStr,
             ComputerLauncher computerLauncher, RetentionStrategy rs)
             throws Descriptor.FormException, IOException {
@@ -105,7 +168,21 @@ public class NomadSlave extends AbstractCloudSlave {
             template.generateName(NomadJobTemplateStep.DEFAULT_AGENT_NAME);
             name = template.getName();
         }
-        return name;
+        // Several agents can be started from the same template
+        String randString = RandomStringUtils.random(5, "bcdfghjklmnpqrstvwxz0123456789");
+        return String.format(NAME_FORMAT, name, randString);
+    }
+
+    /**
+     * Returns the secret the agent uses to connect to Jenkins.
+     *
+     * It doesn't need the computer of the agent to exist, so the Nomad job
+     * can be prepared before the agent is added to Jenkins.
+     *
+     * @return the JNLP secret of the agent.
+     */
+    public String getJnlpMac() {
+        return JnlpSlaveAgentProtocol.SLAVE_SECRET.mac(getNodeName());
     }
 
     @Override
@@ -140,6 +217,8 @@ public class NomadSlave extends AbstractCloudSlave {
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
         LOGGER.log(Level.INFO, "Terminating Nomad job for agent {0}", name);
+        long terminatedAt = System.currentTimeMillis();
+        NomadInProvisioning.get().remove(name);
 
         NomadCloud cloud;
         try {
@@ -150,15 +229,7 @@ public class NomadSlave extends AbstractCloudSlave {
             LOGGER.log(Level.SEVERE, msg);
             return;
         }
-        NomadApiClient client;
-        try {
-            client = cloud.connect();
-        } catch (Exception e) {
-            String msg = String.format("Failed to connect to cloud %s", getCloudName());
-            e.printStackTrace(listener.fatalError(msg));
-            LOGGER.log(Level.SEVERE, msg);
-            return;
-        }
+        cloud.getJobCounter().release(template);
 
         // TODO: check the job status and the job retention policy to determine
         // if the job needs to be stopped or not.
@@ -167,26 +238,11 @@ public class NomadSlave extends AbstractCloudSlave {
             String msg = String.format("Computer for agent is null: %s", name);
             LOGGER.log(Level.SEVERE, msg);
             listener.fatalError(msg);
+            // Nothing to disconnect, but the job must not be left behind
+            deleteJob(listener, cloud, terminatedAt);
             return;
         }
 
-        // Tell the slave to stop JNLP reconnects.
-        VirtualChannel ch = computer.getChannel();
-        if (ch != null) {
-            ch.call(new SlaveDisconnector());
-        }
-
-        OfflineCause offlineCause = OfflineCause.create(new Localizable(HOLDER, "offline"));
-
-        Future<?> disconnected = computer.disconnect(offlineCause);
-        // wait a bit for disconnection to avoid stack traces in logs
-        try {
-            disconnected.get(DISCONNECTION_TIMEOUT, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            String msg = String.format("Ignoring error waiting for agent disconnection %s: %s", name, e.getMessage());
-            LOGGER.log(Level.INFO, msg, e);
-        }
-
         if (getCloudName() == null) {
             String msg = String.format("Cloud name is not set for agent, can't terminate: %s", name);
             LOGGER.log(Level.SEVERE, msg);
@@ -194,41 +250,75 @@ public class NomadSlave extends AbstractCloudSlave {
             return;
         }
 
-        deleteJob(listener, client);
+        // Disconnected in the background: the caller doesn't wait for each
+        // agent in turn
+        TERMINATION_EXECUTOR.execute(() -> disconnect(listener, cloud, computer, terminatedAt));
+    }
+
+    private void disconnect(TaskListener listener, NomadCloud cloud, Computer computer, long terminatedAt) {
+        // Tell the slave to stop JNLP reconnects, and wait a bit for the
+        // answer before closing the channel
+        VirtualChannel ch = computer.getChannel();
+        if (ch != null) {
+            try {
+                ch.callAsync(new SlaveDisconnector()).get(DISCONNECTION_TIMEOUT, TimeUnit.SECONDS);
+            } catch (IOException | ExecutionException | TimeoutException e) {
+                LOGGER.log(Level.FINE, String.format("Unable to stop the reconnections of agent %s", name), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        OfflineCause offlineCause = OfflineCause.create(new Localizable(HOLDER, "offline"));
+        computer.disconnect(offlineCause);
+
+        // Deregistered in the background, along with the other agents
+        deleteJob(listener, cloud, terminatedAt);
 
         String msg = String.format("Disconnected computer %s", name);
         LOGGER.log(Level.INFO, msg);
         listener.getLogger().println(msg);
     }
 
-    private void deleteJob(TaskListener listener, NomadApiClient client) throws IOException {
-        EvaluationResponse response;
-        LOGGER.log(Level.FINE, "Deregistering job {0} from cloud {1}",
-                new Object[]{name, getCloudName()});
-        try {
-            response = client.getJobsApi().deregister(name);
-        } catch (NomadException e) {
-            String msg = String.format("Failed to delete job for agent %s: %s", name,
-                    e.getMessage());
-            LOGGER.log(Level.WARNING, msg, e);
-            listener.error(msg);
+    private void deleteJob(TaskListener listener, NomadCloud cloud, long terminatedAt) {
+        if (template != null && template.getJobMode() == NomadJobTemplate.JobMode.SHARED_JOB) {
+            removeFromSharedJob(listener, cloud, terminatedAt);
             return;
         }
 
-        LOGGER.log(Level.FINE, "Deregistered {0} using evaluation ID {1}",
-                new Object[]{name, response.getValue()});
-
-        boolean deleted = response.getHttpResponse().getStatusLine().getStatusCode() == 200;
+        String jobID = getJobID();
+        LOGGER.log(Level.FINE, "Deregistering job {0} from cloud {1}",
+                new Object[]{jobID, getCloudName()});
+        // Retried until Nomad confirms, even after a restart of Jenkins
+        cloud.getDeregistrationQueue().deregister(jobID).thenRun(() -> {
+            NomadMetrics.record(cloud, template, NomadMetrics.Stage.TERMINATE_TO_DEREGISTERED,
+                    System.currentTimeMillis() - terminatedAt);
+            LOGGER.log(Level.INFO, "Terminated Nomad job for agent {0}", name);
+        });
+
+        listener.getLogger().println(String.format("Deregistering Nomad job %s for agent %s", jobID, name));
+    }
 
-        if (!deleted) {
-            String msg = String.format("Failed to delete job for agent %s: HTTP %s",
-                    name, response.getHttpResponse().getStatusLine().getStatusCode());
-            LOGGER.log(Level.WARNING, msg);
-            listener.error(msg);
-            return;
-        }
+    private void removeFromSharedJob(TaskListener listener, NomadCloud cloud, long terminatedAt) {
+        // Agents started before the shared jobs were split have no job ID
+        NomadSharedJob sharedJob = cloud.getSharedJob(jobID == null ? template.getName() : jobID);
+        LOGGER.log(Level.FINE, "Removing agent {0} from shared job {1}",
+                new Object[]{name, sharedJob.getJobID()});
+        // Don't wait for Nomad: the removal is sent along with the other
+        // changes to the shared job.
+        sharedJob.remove(name).whenComplete((evaluationID, error) -> {
+            if (error != null) {
+                LOGGER.log(Level.WARNING, String.format("Failed to remove agent %s from shared job %s",
+                        name, sharedJob.getJobID()), error);
+            } else {
+                LOGGER.log(Level.FINE, "Removed {0} from shared job {1} using evaluation ID {2}",
+                        new Object[]{name, sharedJob.getJobID(), evaluationID});
+                NomadMetrics.record(cloud, template, NomadMetrics.Stage.TERMINATE_TO_DEREGISTERED,
+                        System.currentTimeMillis() - terminatedAt);
+            }
+        });
 
-        String msg = String.format("Terminated Nomad job for agent %s", name);
+        String msg = String.format("Removed agent %s from Nomad job %s", name, sharedJob.getJobID());
         LOGGER.log(Level.INFO, msg);
         listener.getLogger().println(msg);
     }
@@ -287,6 +377,7 @@ public class NomadSlave extends AbstractCloudSlave {
         private String label;
         private ComputerLauncher computerLauncher;
         private RetentionStrategy retentionStrategy;
+        private boolean warmPool;
 
         /**
          * @param name The name of the future {@link NomadSlave}
@@ -356,11 +447,23 @@ public class NomadSlave extends AbstractCloudSlave {
             return this;
         }
 
+        /**
+         * @param warmPool Whether the {@link NomadSlave} is started for the
+         * warm pool of its template.
+         * @return the current instance for method chaining
+         */
+        public Builder warmPool(boolean warmPool) {
+            this.warmPool = warmPool;
+            return this;
+        }
+
         private RetentionStrategy determineRetentionStrategy() {
+            // Agents of the warm pool are replaced once they're idle for too long
+            int maxIdleAge = warmPool ? jobTemplate.getMaxIdleAge() : 0;
             if (jobTemplate.getIdleMinutes() == 0) {
-                return new OnceRetentionStrategy(cloud.getRetentionTimeout());
+                return new OnceRetentionStrategy(maxIdleAge > 0 ? maxIdleAge : cloud.getRetentionTimeout());
             } else {
-                return new CloudRetentionStrategy(jobTemplate.getIdleMinutes());
+                return new CloudRetentionStrategy(maxIdleAge > 0 ? maxIdleAge : jobTemplate.getIdleMinutes());
             }
         }
 
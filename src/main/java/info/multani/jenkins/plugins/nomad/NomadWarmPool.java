@@ -0,0 +1,146 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Keeps idle agents ready for the templates with a warm pool.
+ *
+ * The pools are checked periodically, and as soon as an agent of a pool
+ * accepts a task. Missing agents are added to Jenkins right away, and are
+ * launched in the background like any other agent.
+ *
+ * @see NomadJobTemplate#getMinIdle()
+ */
+@Extension
+public class NomadWarmPool extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadWarmPool.class.getName());
+
+    /**
+     * How often, in seconds, the warm pools are checked.
+     */
+    private static final long RECURRENCE_PERIOD = Long
+            .getLong(NomadWarmPool.class.getName() + ".recurrencePeriod", 30);
+
+    public NomadWarmPool() {
+        super("Nomad warm pool");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(RECURRENCE_PERIOD);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (!(cloud instanceof NomadCloud)) {
+                continue;
+            }
+            for (NomadJobTemplate template : ((NomadCloud) cloud).getTemplates()) {
+                if (template.getMinIdle() > 0) {
+                    replenish((NomadCloud) cloud, template);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces in the background the agent of a warm pool which has just
+     * been given a task.
+     *
+     * @param slave the agent which is no longer idle
+     */
+    static void replenishLater(@Nonnull NomadSlave slave) {
+        NomadJobTemplate template = slave.getTemplate();
+        if (template == null || template.getMinIdle() == 0) {
+            return;
+        }
+        Timer.get().submit(() -> replenish(slave.getNomadCloud(), template));
+    }
+
+    /**
+     * Starts the agents missing from the warm pool of a template.
+     *
+     * @param cloud the cloud the template belongs to
+     * @param template the template with a warm pool
+     */
+    static void replenish(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template) {
+        replenish(cloud, template, Math.max(template.getMinIdle(), NomadPredictiveScaler.getForecast(cloud, template)));
+    }
+
+    /**
+     * Starts agents until the given number of agents of a template are idle,
+     * or starting.
+     *
+     * @param cloud the cloud the template belongs to
+     * @param template the template to start agents from
+     * @param target the number of idle agents to reach
+     */
+    static synchronized void replenish(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate template, int target) {
+        int missing = target - countIdle(cloud, template);
+        if (missing <= 0) {
+            return;
+        }
+
+        LOGGER.log(Level.FINE, "Starting {0} agents for the warm pool of template {1}",
+                new Object[]{missing, template.getName()});
+        for (int i = 0; i < missing; i++) {
+            try {
+                if (!cloud.getJobCounter().tryReserve(template)) {
+                    break;
+                }
+                Node node = new ProvisioningCallback(cloud, template, true).call();
+                try {
+                    Jenkins.getInstance().addNode(node);
+                } catch (IOException e) {
+                    cloud.getJobCounter().release(template);
+                    throw e;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, String.format("Unable to start an agent for the warm pool of template %s",
+                        template.getName()), e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Counts the agents of a template which are idle, or still starting.
+     */
+    private static int countIdle(NomadCloud cloud, NomadJobTemplate template) {
+        int idle = 0;
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (!(node instanceof NomadSlave)) {
+                continue;
+            }
+            NomadSlave slave = (NomadSlave) node;
+            if (!cloud.name.equals(slave.getCloudName()) || slave.getTemplate() == null
+                    || !template.getName().equals(slave.getTemplate().getName())) {
+                continue;
+            }
+
+            // Once launch() returns, an agent whose job is still being
+            // registered or placed is offline, but still in provisioning
+            Computer computer = slave.toComputer();
+            if (computer == null || computer.isConnecting()
+                    || NomadInProvisioning.get().contains(slave.getNodeName())
+                    || (computer.isOnline() && computer.isIdle())) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+}
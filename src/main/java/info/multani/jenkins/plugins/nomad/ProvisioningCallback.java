@@ -38,19 +38,36 @@ class ProvisioningCallback implements Callable<Node> {
     private final NomadCloud cloud;
     @Nonnull
     private final NomadJobTemplate t;
+    private final boolean warmPool;
 
     public ProvisioningCallback(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate t) {
+        this(cloud, t, false);
+    }
+
+    /**
+     * @param warmPool true if the agent is started for the warm pool of the
+     * template, to be replaced once it's idle for too long
+     */
+    ProvisioningCallback(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate t, boolean warmPool) {
         this.cloud = cloud;
         this.t = t;
+        this.warmPool = warmPool;
     }
 
     @Override
     public Node call() throws Exception {
-        return NomadSlave
-                .builder()
-                .jobTemplate(t) //cloud.getUnwrappedTemplate(t))
-                .cloud(cloud)
-                .build();
+        try {
+            return NomadSlave
+                    .builder()
+                    .jobTemplate(t) //cloud.getUnwrappedTemplate(t))
+                    .cloud(cloud)
+                    .warmPool(warmPool)
+                    .build();
+        } catch (Exception e) {
+            // The agent won't be terminated, release its slot now
+            cloud.getJobCounter().release(t);
+            throw e;
+        }
     }
 
 }
@@ -1,26 +1,20 @@
 package info.multani.jenkins.plugins.nomad;
 
 import com.google.common.base.Preconditions;
-import com.hashicorp.nomad.apimodel.Resources;
-import com.hashicorp.nomad.apimodel.Task;
-import com.hashicorp.nomad.apimodel.TaskArtifact;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.DescriptorVisibilityFilter;
 import static info.multani.jenkins.plugins.nomad.NomadCloud.JNLP_NAME;
-import static info.multani.jenkins.plugins.nomad.NomadJobTemplateBuilder.substituteEnv;
 import info.multani.jenkins.plugins.nomad.model.EnvVar;
 import info.multani.jenkins.plugins.nomad.pipeline.NomadJobTemplateStepExecution;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
@@ -59,10 +53,6 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
 
     private static final List<String> DEFAULT_JNLP_ARGUMENTS = Arrays.asList("${computer.jnlpmac}", "${computer.name}");
 
-    private static final String JNLPMAC_REF = "\\$\\{computer.jnlpmac\\}";
-
-    private static final String NAME_REF = "\\$\\{computer.name\\}";
-
     @DataBoundConstructor
     public TaskTemplate(String name, String image) {
         Preconditions.checkArgument(!StringUtils.isBlank(image));
@@ -176,49 +166,6 @@ public class TaskTemplate extends AbstractDescribableImpl<TaskTemplate> implemen
         this.downloadAgentJar = downloadAgentJar;
     }
 
-    public Task build(NomadSlave slave, Map<String, String> globalEnvVars) {
-        Map<String, String> envVars = new HashMap<>();
-        NomadCloud cloud = slave.getNomadCloud();
-
-        List<String> arguments = this.getArgs().stream()
-                .map(e -> e.replaceAll(JNLPMAC_REF, slave.getComputer().getJnlpMac())
-                .replaceAll(NAME_REF, slave.getComputer().getName())
-                )
-                .collect(Collectors.toList());
-
-        envVars.putAll(globalEnvVars);
-
-        if (this.getEnvVars() != null) {
-            this.getEnvVars().forEach(item
-                    -> envVars.put(item.getKey(), item.getValue())
-            );
-        }
-
-        Task task = new Task();
-        task.setName(substituteEnv(this.getName()));
-        task.setDriver("docker");
-        task.addConfig("image", substituteEnv(getImage()));
-        task.addConfig("command", substituteEnv(this.getCommand()));
-        task.addConfig("args", arguments);
-        task.addConfig("network_mode", "host");
-
-        if (shouldDownloadAgentJar()) {
-            TaskArtifact artifact = new TaskArtifact()
-                    .setGetterSource(cloud.getSlaveUrl())
-                    .setRelativeDest("/local/");
-            task.addArtifacts(artifact);
-        }
-
-        task.setEnv(envVars);
-
-        Resources resources = new Resources()
-                .setCpu(this.getResourcesCPU())
-                .setMemoryMb(this.getResourceMemory());
-        task.setResources(resources);
-
-        return task;
-    }
-
     @Extension
     @Symbol("taskTemplate")
     public static class DescriptorImpl extends Descriptor<TaskTemplate> {
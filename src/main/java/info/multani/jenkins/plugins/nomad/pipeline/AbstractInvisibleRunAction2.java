@@ -25,20 +25,46 @@
 package info.multani.jenkins.plugins.nomad.pipeline;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import hudson.BulkChange;
 import hudson.model.InvisibleAction;
 import hudson.model.Run;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.RunAction2;
+import jenkins.util.Timer;
 
+/**
+ * An invisible action of a run holding a stack of items.
+ *
+ * The stack is an immutable list, so pushing or popping an item doesn't lock
+ * the run or copy the stack. The run is saved soon after, once for all the
+ * changes made in the meantime.
+ */
 public abstract class AbstractInvisibleRunAction2 extends InvisibleAction implements RunAction2 {
 
     private static final Logger LOGGER = Logger.getLogger(AbstractInvisibleRunAction2.class.getName());
 
-    protected final Stack<String> stack = new Stack<>();
+    private static final AtomicReferenceFieldUpdater<AbstractInvisibleRunAction2, Item> TOP = AtomicReferenceFieldUpdater
+            .newUpdater(AbstractInvisibleRunAction2.class, Item.class, "top");
+
+    /**
+     * The stack saved by the previous versions, only read to load their runs.
+     */
+    @Deprecated
+    private Stack<String> stack;
+
+    /**
+     * The top of the stack, or null if it's empty.
+     */
+    private volatile Item top;
+
+    private transient AtomicBoolean saveScheduled = new AtomicBoolean();
 
     protected transient Run<?, ?> run;
 
@@ -52,24 +78,97 @@ public abstract class AbstractInvisibleRunAction2 extends InvisibleAction implem
 
     protected static void push(@NonNull Run<?, ?> run, @NonNull Class<? extends AbstractInvisibleRunAction2> clazz,
             @NonNull String item) throws IOException {
-        synchronized (run) {
-            BulkChange bc = new BulkChange(run);
-            try {
-                AbstractInvisibleRunAction2 action = run.getAction(clazz);
+        AbstractInvisibleRunAction2 action = run.getAction(clazz);
+        if (action == null) {
+            synchronized (run) {
+                action = run.getAction(clazz);
                 if (action == null) {
-                    action = clazz.newInstance();
+                    try {
+                        action = clazz.newInstance();
+                    } catch (InstantiationException | IllegalAccessException e) {
+                        throw new RuntimeException("Can not instantiate class " + clazz, e);
+                    }
                     run.addAction(action);
                 }
-                LOGGER.log(Level.FINEST, "Pushing item {0} to action {1} in run {2}",
-                        new Object[] { item, action, run });
-                action.stack.push(item);
-                bc.commit();
-            } catch (InstantiationException | IllegalAccessException e) {
-                throw new RuntimeException("Can not instantiate class " + clazz, e);
-            } finally {
-                bc.abort();
             }
         }
+        LOGGER.log(Level.FINEST, "Pushing item {0} to action {1} in run {2}",
+                new Object[] { item, action, run });
+        action.push(item);
+    }
+
+    /**
+     * Pushes an item on the stack.
+     *
+     * @param item the item to push
+     */
+    protected void push(@NonNull String item) {
+        Item current;
+        do {
+            current = top;
+        } while (!TOP.compareAndSet(this, current, new Item(item, current)));
+        saveLater();
+    }
+
+    /**
+     * Pops the item on the top of the stack.
+     *
+     * @return the item popped, or null if the stack is empty.
+     */
+    protected String popItem() {
+        Item current;
+        do {
+            current = top;
+            if (current == null) {
+                return null;
+            }
+        } while (!TOP.compareAndSet(this, current, current.next));
+        saveLater();
+        return current.value;
+    }
+
+    /**
+     * Returns the items of the stack, from the bottom to the top.
+     *
+     * @return the items of the stack.
+     */
+    @NonNull
+    protected List<String> getItems() {
+        List<String> items = new ArrayList<>();
+        for (Item item = top; item != null; item = item.next) {
+            items.add(item.value);
+        }
+        Collections.reverse(items);
+        return items;
+    }
+
+    /**
+     * Saves the run soon: the changes made in the meantime are saved at once.
+     */
+    private void saveLater() {
+        if (run != null && saveScheduled.compareAndSet(false, true)) {
+            Timer.get().submit(this::save);
+        }
+    }
+
+    private void save() {
+        saveScheduled.set(false);
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Failed to save %s", run), e);
+        }
+    }
+
+    protected Object readResolve() {
+        if (stack != null) {
+            for (String item : stack) {
+                top = new Item(item, top);
+            }
+            stack = null;
+        }
+        saveScheduled = new AtomicBoolean();
+        return this;
     }
 
     @Override
@@ -82,4 +181,18 @@ public abstract class AbstractInvisibleRunAction2 extends InvisibleAction implem
         setRun(r);
     }
 
+    /**
+     * An item of the stack, and the ones below it.
+     */
+    private static final class Item {
+
+        private final String value;
+
+        private final Item next;
+
+        Item(String value, Item next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
 }
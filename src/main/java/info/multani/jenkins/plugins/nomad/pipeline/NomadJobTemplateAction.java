@@ -1,10 +1,8 @@
 package info.multani.jenkins.plugins.nomad.pipeline;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import hudson.BulkChange;
 import hudson.model.Run;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 import jenkins.model.RunAction2;
@@ -32,26 +30,12 @@ public class NomadJobTemplateAction extends AbstractInvisibleRunAction2 implemen
             LOGGER.warning("run is null, cannot pop");
             return null;
         }
-        synchronized (run) {
-            BulkChange bc = new BulkChange(run);
-            try {
-                NomadJobTemplateAction action = run.getAction(NomadJobTemplateAction.class);
-                if (action == null) {
-                    action = new NomadJobTemplateAction(run);
-                    run.addAction(action);
-                }
-                String template = action.stack.pop();
-                bc.commit();
-                return template;
-            } finally {
-                bc.abort();
-                return null;
-            }
-        }
+        NomadJobTemplateAction action = run.getAction(NomadJobTemplateAction.class);
+        return action == null ? null : action.popItem();
     }
 
     public List<String> getParentTemplateList() {
-        return new ArrayList<>(stack);
+        return getItems();
     }
 
     public String getParentTemplates() {
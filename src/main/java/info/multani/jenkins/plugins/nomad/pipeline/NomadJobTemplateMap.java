@@ -2,19 +2,44 @@ package info.multani.jenkins.plugins.nomad.pipeline;
 
 import hudson.Extension;
 import hudson.ExtensionList;
-import hudson.util.CopyOnWriteMap;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
 import info.multani.jenkins.plugins.nomad.NomadCloud;
 import info.multani.jenkins.plugins.nomad.NomadJobTemplate;
 import info.multani.jenkins.plugins.nomad.NomadJobTemplateSource;
+import info.multani.jenkins.plugins.nomad.NomadSlave;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 
 /**
  * A map of {@link NomadCloud} -&gt; List of {@link NomadJobTemplate} instances.
+ *
+ * The templates of a cloud are indexed by name, so adding or removing one
+ * doesn't copy the others. Readers get an immutable snapshot, taken again
+ * only after a change.
+ *
+ * The templates are saved in {@code JENKINS_HOME}, and loaded again before the
+ * builds are, so the clouds can start the agents of the resumed builds without
+ * waiting for their pipelines to resume.
  */
 @Extension
 public class NomadJobTemplateMap {
@@ -25,9 +50,20 @@ public class NomadJobTemplateMap {
     }
 
     /**
-     * List of Job Templates indexed by cloud name
+     * How long, in minutes, the templates loaded at startup are kept for the
+     * pipelines to resume and use them again.
      */
-    private Map<String, List<NomadJobTemplate>> map = new CopyOnWriteMap.Hash<>();
+    private static final long RESUME_TIMEOUT = Long
+            .getLong(NomadJobTemplateMap.class.getName() + ".resumeTimeout", 60);
+
+    /**
+     * Job Templates indexed by cloud name
+     */
+    private final ConcurrentMap<String, CloudTemplates> map = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private final Object saveLock = new Object();
 
     /**
      * Returns a read-only view of the templates available for the corresponding cloud instance.
@@ -36,12 +72,16 @@ public class NomadJobTemplateMap {
      */
     @Nonnull
     public List<NomadJobTemplate> getTemplates(@Nonnull NomadCloud cloud) {
-        return Collections.unmodifiableList(getOrCreateTemplateList(cloud));
+        CloudTemplates templates = map.get(cloud.name);
+        return templates == null ? Collections.emptyList() : templates.snapshot();
+    }
+
+    private CloudTemplates getOrCreateTemplates(@Nonnull NomadCloud cloud) {
+        return getOrCreateTemplates(cloud.name);
     }
 
-    private List<NomadJobTemplate> getOrCreateTemplateList(@Nonnull NomadCloud cloud) {
-        List<NomadJobTemplate> jobTemplates = map.get(cloud.name);
-        return jobTemplates == null ? new CopyOnWriteArrayList<>() : jobTemplates;
+    private CloudTemplates getOrCreateTemplates(@Nonnull String cloudName) {
+        return map.computeIfAbsent(cloudName, name -> new CloudTemplates());
     }
 
     /**
@@ -50,13 +90,342 @@ public class NomadJobTemplateMap {
      * @param jobTemplate The job template to add.
      */
     public void addTemplate(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate jobTemplate) {
-        List<NomadJobTemplate> list = getOrCreateTemplateList(cloud);
-        list.add(jobTemplate);
-        map.put(cloud.name, list);
+        getOrCreateTemplates(cloud).add(jobTemplate);
+        changed();
     }
 
     public void removeTemplate(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate jobTemplate) {
-        getOrCreateTemplateList(cloud).remove(jobTemplate);
+        CloudTemplates templates = map.get(cloud.name);
+        if (templates != null && templates.remove(jobTemplate)) {
+            changed();
+        }
+    }
+
+    /**
+     * Takes a reference on a template shared between the steps. The first
+     * reference adds the template; the next ones get the template already
+     * added under the same name, along with its agents.
+     *
+     * @param cloud The cloud instance.
+     * @param jobTemplate The job template to use.
+     * @return the template to use: the one already added under the same name,
+     * if any, or {@code jobTemplate}.
+     */
+    @Nonnull
+    public NomadJobTemplate acquireTemplate(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate jobTemplate) {
+        CloudTemplates templates = getOrCreateTemplates(cloud);
+        NomadJobTemplate existing;
+        synchronized (templates) {
+            templates.references.merge(jobTemplate.getName(), 1, Integer::sum);
+            existing = templates.get(jobTemplate.getName());
+            if (existing == null) {
+                templates.add(jobTemplate);
+            }
+        }
+        if (existing != null) {
+            return existing;
+        }
+        changed();
+        return jobTemplate;
+    }
+
+    /**
+     * Releases a reference taken by {@link #acquireTemplate}. The template
+     * stays added: see {@link #removeTemplateIfUnused}.
+     *
+     * @param cloud The cloud instance.
+     * @param jobTemplate The job template to release.
+     * @return true if it was the last reference to the template.
+     */
+    public boolean releaseTemplate(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate jobTemplate) {
+        CloudTemplates templates = getOrCreateTemplates(cloud);
+        synchronized (templates) {
+            String name = jobTemplate.getName();
+            Integer count = templates.references.get(name);
+            if (count == null || count <= 1) {
+                templates.references.remove(name);
+                return true;
+            }
+            templates.references.put(name, count - 1);
+            return false;
+        }
+    }
+
+    /**
+     * Removes a shared template, unless a step took a reference on it again.
+     *
+     * @param cloud The cloud instance.
+     * @param jobTemplate The job template to remove.
+     * @return true if the template was removed.
+     */
+    public boolean removeTemplateIfUnused(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate jobTemplate) {
+        return removeTemplateIfUnused(cloud.name, jobTemplate);
+    }
+
+    private boolean removeTemplateIfUnused(@Nonnull String cloudName, @Nonnull NomadJobTemplate jobTemplate) {
+        CloudTemplates templates = getOrCreateTemplates(cloudName);
+        boolean removed;
+        synchronized (templates) {
+            if (templates.references.containsKey(jobTemplate.getName())) {
+                return false;
+            }
+            NomadJobTemplate existing = templates.get(jobTemplate.getName());
+            removed = existing != null && templates.remove(existing);
+        }
+        if (removed) {
+            changed();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a shared template after a delay, unless a step took a reference
+     * on it again in the meantime, and terminates the agents started from it.
+     *
+     * The template is saved until it's removed: if Jenkins restarts in the
+     * meantime, it's removed once loaded again, like the other templates.
+     *
+     * @param cloud The cloud instance.
+     * @param jobTemplate The job template to remove.
+     * @param delay How long to keep the template, in minutes, for its idle
+     * agents to run the next steps using the same template.
+     */
+    public void removeTemplateLater(@Nonnull NomadCloud cloud, @Nonnull NomadJobTemplate jobTemplate, long delay) {
+        removeTemplateLater(cloud.name, jobTemplate, delay);
+    }
+
+    private void removeTemplateLater(@Nonnull String cloudName, @Nonnull NomadJobTemplate jobTemplate, long delay) {
+        Timer.get().schedule(() -> removeTemplate(cloudName, jobTemplate), Math.max(0, delay), TimeUnit.MINUTES);
+    }
+
+    private void removeTemplate(@Nonnull String cloudName, @Nonnull NomadJobTemplate jobTemplate) {
+        if (!removeTemplateIfUnused(cloudName, jobTemplate)) {
+            LOGGER.log(Level.FINE, "Job template {0} is used again, keeping it", jobTemplate.getName());
+            return;
+        }
+        LOGGER.log(Level.INFO, "Removing job template {1} and its agents from cloud {0}",
+                new Object[]{cloudName, jobTemplate.getName()});
+
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (!(node instanceof NomadSlave)) {
+                continue;
+            }
+            NomadSlave slave = (NomadSlave) node;
+            NomadJobTemplate template = slave.getTemplate();
+            if (!cloudName.equals(slave.getCloudName()) || template == null
+                    || !jobTemplate.getName().equals(template.getName())) {
+                continue;
+            }
+            // Removes the agent from Jenkins, and its job from Nomad
+            try {
+                slave.terminate();
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.WARNING, String.format("Unable to terminate agent %s", slave.getNodeName()), e);
+            }
+        }
+
+        Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
+        if (jobTemplate.getJobMode() == NomadJobTemplate.JobMode.DISPATCH && cloud instanceof NomadCloud) {
+            // The parameterized job the agents were dispatched from
+            LOGGER.log(Level.FINE, "Deregistering parameterized job {0} from cloud {1}",
+                    new Object[]{jobTemplate.getName(), cloudName});
+            ((NomadCloud) cloud).deregisterJob(jobTemplate.getName());
+        }
+    }
+
+    private void changed() {
+        NomadJobTemplateSource.changed();
+        saveLater();
+    }
+
+    // ---- Persistence
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2,
+                new File(Jenkins.getInstance().getRootDir(), NomadJobTemplateMap.class.getName() + ".xml"));
+    }
+
+    /**
+     * Saves the templates, soon: the changes made in the meantime are saved
+     * at once.
+     */
+    private void saveLater() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            Timer.get().submit(this::save);
+        }
+    }
+
+    void save() {
+        // The newest templates are always written last
+        synchronized (saveLock) {
+            saveScheduled.set(false);
+            Map<String, List<NomadJobTemplate>> saved = new HashMap<>();
+            for (Map.Entry<String, CloudTemplates> entry : map.entrySet()) {
+                List<NomadJobTemplate> templates = entry.getValue().snapshot();
+                if (!templates.isEmpty()) {
+                    saved.put(entry.getKey(), new ArrayList<>(templates));
+                }
+            }
+
+            XmlFile file = getConfigFile();
+            try {
+                if (saved.isEmpty()) {
+                    if (file.exists()) {
+                        file.delete();
+                    }
+                } else {
+                    file.write(saved);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the dynamic job templates", e);
+            }
+        }
+    }
+
+    /**
+     * Adds again the templates which were used, or waiting for their removal,
+     * when Jenkins stopped. They're removed after a while, along with their
+     * agents, unless the resumed pipelines use them again.
+     */
+    void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        Object saved;
+        try {
+            saved = file.read();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the dynamic job templates", e);
+            return;
+        }
+        if (!(saved instanceof Map)) {
+            return;
+        }
+
+        int count = 0;
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) saved).entrySet()) {
+            String cloudName = String.valueOf(entry.getKey());
+            if (!(entry.getValue() instanceof List)) {
+                continue;
+            }
+            CloudTemplates templates = getOrCreateTemplates(cloudName);
+            for (Object item : (List<?>) entry.getValue()) {
+                if (!(item instanceof NomadJobTemplate)) {
+                    continue;
+                }
+                NomadJobTemplate template = (NomadJobTemplate) item;
+                synchronized (templates) {
+                    if (templates.get(template.getName()) != null) {
+                        continue;
+                    }
+                    templates.add(template);
+                }
+                count++;
+                removeTemplateLater(cloudName, template, RESUME_TIMEOUT);
+            }
+        }
+        if (count > 0) {
+            LOGGER.log(Level.INFO, "Loaded {0} dynamic job templates", count);
+            NomadJobTemplateSource.changed();
+        }
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED, before = InitMilestone.JOB_LOADED)
+    public static void loadTemplates() {
+        get().load();
+    }
+
+    /**
+     * The templates of a cloud. The references are guarded by the instance;
+     * the templates themselves can be added and removed concurrently.
+     */
+    private static final class CloudTemplates {
+
+        private final ConcurrentMap<String, Entry> templates = new ConcurrentHashMap<>();
+
+        /**
+         * Number of running steps using each shared template, indexed by
+         * template name.
+         */
+        private final Map<String, Integer> references = new HashMap<>();
+
+        /**
+         * Orders the templates as they were added.
+         */
+        private final AtomicLong sequence = new AtomicLong();
+
+        /**
+         * Incremented after each change.
+         */
+        private final AtomicLong version = new AtomicLong();
+
+        private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+        NomadJobTemplate get(String name) {
+            Entry entry = templates.get(name);
+            return entry == null ? null : entry.template;
+        }
+
+        void add(NomadJobTemplate template) {
+            templates.put(template.getName(), new Entry(template, sequence.incrementAndGet()));
+            version.incrementAndGet();
+        }
+
+        /**
+         * Removes this very template: not another one added since under the
+         * same name.
+         */
+        boolean remove(NomadJobTemplate template) {
+            Entry entry = templates.get(template.getName());
+            if (entry != null && entry.template == template && templates.remove(template.getName(), entry)) {
+                version.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        List<NomadJobTemplate> snapshot() {
+            Snapshot current = snapshot;
+            long v = version.get();
+            if (current.version == v) {
+                return current.templates;
+            }
+            // Taken again at the next read if it changes in the meantime
+            List<Entry> entries = new ArrayList<>(templates.values());
+            entries.sort(Comparator.comparingLong(e -> e.order));
+            List<NomadJobTemplate> list = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                list.add(entry.template);
+            }
+            current = new Snapshot(v, Collections.unmodifiableList(list));
+            snapshot = current;
+            return current.templates;
+        }
+    }
+
+    private static final class Entry {
+
+        final NomadJobTemplate template;
+
+        final long order;
+
+        Entry(NomadJobTemplate template, long order) {
+            this.template = template;
+            this.order = order;
+        }
+    }
+
+    private static final class Snapshot {
+
+        final long version;
+
+        final List<NomadJobTemplate> templates;
+
+        Snapshot(long version, List<NomadJobTemplate> templates) {
+            this.version = version;
+            this.templates = templates;
+        }
     }
 
     @Extension
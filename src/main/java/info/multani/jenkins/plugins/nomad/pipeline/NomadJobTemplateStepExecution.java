@@ -1,7 +1,5 @@
 package info.multani.jenkins.plugins.nomad.pipeline;
 
-import com.hashicorp.nomad.javasdk.EvaluationResponse;
-import com.hashicorp.nomad.javasdk.NomadApiClient;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
 import hudson.model.Run;
@@ -52,7 +50,6 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
         String parentTemplates = jobTemplateAction != null ? jobTemplateAction.getParentTemplates() : null;
 
         newTemplate = new NomadJobTemplate();
-        newTemplate.generateName(step.getName());
         newTemplate.setRegion(step.getRegion());
         newTemplate.setDatacenters(step.getDatacenters());
         newTemplate.setInstanceCap(step.getInstanceCap());
@@ -62,8 +59,11 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
         newTemplate.setEnvVars(step.getEnvVars());
         newTemplate.setTaskGroups(step.getTaskGroups());
         newTemplate.setNodeUsageMode(step.getNodeUsageMode());
+        // Named after its content: the steps with the same specification
+        // share the template, and its agents.
+        newTemplate.setName(String.format("%s-%s", step.getName(), digest(newTemplate)));
 
-        nomadCloud.addDynamicTemplate(newTemplate);
+        newTemplate = NomadJobTemplateMap.get().acquireTemplate(nomadCloud, newTemplate);
         getContext().newBodyInvoker().withContext(step).withCallback(new NomadJobTemplateCallback(newTemplate)).start();
 
         NomadJobTemplateAction.push(run, newTemplate.getName());
@@ -90,7 +90,15 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
                     cloud.getClass().getName()));
         }
         NomadCloud nomadCloud = (NomadCloud) cloud;
-        nomadCloud.addDynamicTemplate(newTemplate);
+        newTemplate = NomadJobTemplateMap.get().acquireTemplate(nomadCloud, newTemplate);
+    }
+
+    /**
+     * Computes the digest of the specification of a template, everything but
+     * its name.
+     */
+    static String digest(NomadJobTemplate template) {
+        return template.getDigest().substring(0, 10);
     }
 
     private class NomadJobTemplateCallback extends BodyExecutionCallback.TailCall {
@@ -105,7 +113,7 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
 
         @Override
         /**
-         * Remove the template after step is done
+         * Release the template after step is done
          */
         protected void finished(StepContext context) throws Exception {
             Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
@@ -115,25 +123,15 @@ public class NomadJobTemplateStepExecution extends AbstractStepExecutionImpl {
                 return;
             }
             if (cloud instanceof NomadCloud) {
-                LOGGER.log(Level.INFO, "Removing job template and deleting job {1} from cloud {0}",
-                        new Object[]{cloud.name, jobTemplate.getName()});
                 NomadCloud nomadCloud = (NomadCloud) cloud;
-                nomadCloud.removeDynamicTemplate(jobTemplate);
-                NomadApiClient client = nomadCloud.connect();
-                
-                LOGGER.log(Level.FINE, "Deregistering job {0} from cloud {0}",
-                        new Object[]{jobTemplate.getName(), cloud.name});
-                EvaluationResponse response = client.getJobsApi().deregister(jobTemplate.getName());
-                LOGGER.log(Level.FINE, "Deregistered {0} using evaluation ID {1}",
-                        new Object[]{jobTemplate.getName(), response.getValue()});
-                
-                boolean deleted = response.getHttpResponse().getStatusLine().getStatusCode() == 200;
-                if (!deleted) {
-                    LOGGER.log(Level.WARNING, "Failed to deregister job {0}: HTTP {1}",
-                        new Object[]{jobTemplate.getName(),
-                            response.getHttpResponse().getStatusLine().getStatusCode()});
+                if (!NomadJobTemplateMap.get().releaseTemplate(nomadCloud, jobTemplate)) {
+                    LOGGER.log(Level.FINE, "Job template {0} is still used by other steps", jobTemplate.getName());
                     return;
                 }
+
+                // The idle agents can run the next steps with the same
+                // template until they're retired.
+                NomadJobTemplateMap.get().removeTemplateLater(nomadCloud, jobTemplate, jobTemplate.getIdleMinutes());
             } else {
                 LOGGER.log(Level.WARNING, "Cloud is not a NomadCloud: {0} {1}",
                         new String[]{cloud.name, cloud.getClass().getName()});
@@ -0,0 +1,91 @@
+package info.multani.jenkins.plugins.nomad;
+
+import org.junit.Test;
+
+import static info.multani.jenkins.plugins.nomad.ArrivalHistory.BUCKET_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArrivalHistoryTest {
+
+    private static final long START = 1000 * BUCKET_MILLIS;
+
+    @Test
+    public void steadyRate() {
+        ArrivalHistory history = new ArrivalHistory(10);
+        for (int minute = 0; minute < 10; minute++) {
+            record(history, START + minute * BUCKET_MILLIS, 5);
+        }
+
+        // The current bucket is incomplete, and left out
+        assertEquals(15, history.forecast(START + 9 * BUCKET_MILLIS, 3), 1e-9);
+        assertEquals(15, history.forecast(START + 10 * BUCKET_MILLIS, 3), 1e-9);
+    }
+
+    @Test
+    public void ramp() {
+        ArrivalHistory history = new ArrivalHistory(10);
+        for (int minute = 0; minute < 10; minute++) {
+            record(history, START + minute * BUCKET_MILLIS, minute);
+        }
+
+        // The trend carries the forecast past the last complete bucket
+        long now = START + 10 * BUCKET_MILLIS;
+        double next = history.forecast(now, 1);
+        assertTrue(next > 9);
+        assertTrue(history.forecast(now, 2) > 2 * next);
+    }
+
+    @Test
+    public void decreasingRateIsNeverNegative() {
+        ArrivalHistory history = new ArrivalHistory(10);
+        for (int minute = 0; minute < 10; minute++) {
+            record(history, START + minute * BUCKET_MILLIS, 10 - minute);
+        }
+
+        long now = START + 10 * BUCKET_MILLIS;
+        double total = history.forecast(now, 30);
+        assertTrue(total >= 0);
+        assertEquals(total, history.forecast(now, 60), 1e-9);
+    }
+
+    @Test
+    public void idleGapLongerThanHistory() {
+        ArrivalHistory history = new ArrivalHistory(10);
+        for (int minute = 0; minute < 10; minute++) {
+            record(history, START + minute * BUCKET_MILLIS, 5);
+        }
+        assertFalse(history.isEmpty(START + 10 * BUCKET_MILLIS));
+
+        // All the buckets are cleared, not only the first ones of the ring
+        long now = START + 25 * BUCKET_MILLIS;
+        assertTrue(history.isEmpty(now));
+        assertEquals(0, history.forecast(now, 5), 1e-9);
+
+        // Nothing is left of the arrivals before the gap
+        ArrivalHistory fresh = new ArrivalHistory(10);
+        record(history, now, 2);
+        record(fresh, now, 2);
+        assertEquals(fresh.forecast(now + BUCKET_MILLIS, 3), history.forecast(now + BUCKET_MILLIS, 3), 1e-9);
+    }
+
+    @Test
+    public void minuteBoundary() {
+        // Only the previous bucket is complete
+        ArrivalHistory history = new ArrivalHistory(2);
+        record(history, START + BUCKET_MILLIS - 1, 3);
+        record(history, START + BUCKET_MILLIS, 1);
+
+        assertEquals(3, history.forecast(START + BUCKET_MILLIS, 1), 1e-9);
+        assertEquals(3, history.forecast(START + 2 * BUCKET_MILLIS - 1, 1), 1e-9);
+        assertEquals(1, history.forecast(START + 2 * BUCKET_MILLIS, 1), 1e-9);
+        assertEquals(0, history.forecast(START + 3 * BUCKET_MILLIS, 1), 1e-9);
+    }
+
+    private static void record(ArrivalHistory history, long now, int count) {
+        for (int i = 0; i < count; i++) {
+            history.record(now);
+        }
+    }
+}
@@ -0,0 +1,746 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.AllocationMetric;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobDispatchResponse;
+import com.hashicorp.nomad.apimodel.JobListStub;
+import com.hashicorp.nomad.apimodel.TaskEvent;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.apimodel.TaskState;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-process stand-in for the HTTP API of a Nomad cluster.
+ *
+ * It implements the endpoints used by the plugin: registering, reading,
+ * dispatching and deregistering jobs, listing the jobs and the allocations
+ * (with blocking queries), and reading evaluations. Registered jobs are
+ * "scheduled" after configurable delays, and may fail to be placed or to start
+ * at configurable rates.
+ *
+ * <pre>
+ * try (FakeNomadServer nomad = new FakeNomadServer()) {
+ *     nomad.setPlacementDelay(50).setStartDelay(200).setTaskFailureRate(0.01);
+ *     cloud.setServerUrl(nomad.getUrl());
+ *     ...
+ * }
+ * </pre>
+ */
+public class FakeNomadServer implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(FakeNomadServer.class.getName());
+
+    /**
+     * Receives the changes of the allocations, for tests measuring the
+     * scheduling.
+     */
+    public interface Listener {
+
+        void registered(String jobID);
+
+        void running(String jobID, String taskGroup);
+
+        void failed(String jobID, String taskGroup);
+
+        void deregistered(String jobID);
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private final HttpServer server;
+
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+    private final Random random = new Random();
+
+    /**
+     * The state of the cluster; guarded by {@code this}, notified whenever the
+     * index is incremented.
+     */
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final Map<String, AllocationListStub> allocations = new LinkedHashMap<>();
+    private final Map<String, Evaluation> evaluations = new HashMap<>();
+    private long index = 1;
+
+    private final ConcurrentMap<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    private volatile long placementDelay = 0;
+    private volatile long startDelay = 0;
+    private volatile double placementFailureRate = 0;
+    private volatile double taskFailureRate = 0;
+    private volatile long maxBlockingWait = TimeUnit.MINUTES.toMillis(5);
+    private volatile Listener listener;
+
+    public FakeNomadServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/", this::handle);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * Returns the address to configure the clouds with.
+     *
+     * @return the URL of the fake server
+     */
+    public String getUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Sets how long the scheduler takes to place a newly registered job.
+     *
+     * @param millis the delay, in milliseconds
+     * @return this server
+     */
+    public FakeNomadServer setPlacementDelay(long millis) {
+        this.placementDelay = millis;
+        return this;
+    }
+
+    /**
+     * Sets how long the tasks of an allocation take to be running once placed.
+     *
+     * @param millis the delay, in milliseconds
+     * @return this server
+     */
+    public FakeNomadServer setStartDelay(long millis) {
+        this.startDelay = millis;
+        return this;
+    }
+
+    /**
+     * Sets the ratio of task groups which can't be placed, as if the cluster
+     * was out of capacity.
+     *
+     * @param rate between 0 and 1
+     * @return this server
+     */
+    public FakeNomadServer setPlacementFailureRate(double rate) {
+        this.placementFailureRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets the ratio of allocations whose tasks fail to start, as if the
+     * image couldn't be pulled.
+     *
+     * @param rate between 0 and 1
+     * @return this server
+     */
+    public FakeNomadServer setTaskFailureRate(double rate) {
+        this.taskFailureRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets how long a blocking query waits for a change at most, when the
+     * client doesn't ask for a shorter wait.
+     *
+     * @param millis the maximum wait, in milliseconds
+     * @return this server
+     */
+    public FakeNomadServer setMaxBlockingWait(long millis) {
+        this.maxBlockingWait = millis;
+        return this;
+    }
+
+    public FakeNomadServer setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Returns the number of requests received, per method and endpoint.
+     *
+     * @return the number of requests, such as {@code "PUT /v1/jobs" -> 42}
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        requests.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        return counts;
+    }
+
+    /**
+     * Returns the IDs of the jobs currently registered.
+     *
+     * @return the job IDs
+     */
+    public synchronized List<String> getJobIDs() {
+        return new ArrayList<>(jobs.keySet());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        handlers.shutdownNow();
+        synchronized (this) {
+            // Wake up the blocking queries
+            notifyAll();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getRawPath().substring("/v1/".length());
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            count(method, path);
+
+            if (path.equals("jobs")) {
+                if (method.equals("GET")) {
+                    listJobs(exchange, query);
+                } else {
+                    register(exchange);
+                }
+            } else if (path.equals("allocations")) {
+                listAllocations(exchange, query);
+            } else if (path.startsWith("evaluation/")) {
+                getEvaluation(exchange, decode(path.substring("evaluation/".length())), query);
+            } else if (path.startsWith("job/")) {
+                String jobPath = decode(path.substring("job/".length()));
+                if (jobPath.endsWith("/allocations")) {
+                    getJobAllocations(exchange, jobPath.substring(0, jobPath.length() - "/allocations".length()), query);
+                } else if (jobPath.endsWith("/evaluations")) {
+                    getJobEvaluations(exchange, jobPath.substring(0, jobPath.length() - "/evaluations".length()), query);
+                } else if (jobPath.endsWith("/dispatch")) {
+                    dispatch(exchange, jobPath.substring(0, jobPath.length() - "/dispatch".length()));
+                } else if (method.equals("DELETE")) {
+                    deregister(exchange, jobPath);
+                } else if (method.equals("GET")) {
+                    getJob(exchange, jobPath);
+                } else {
+                    register(exchange);
+                }
+            } else {
+                send(exchange, 404, "Unsupported endpoint: " + path);
+            }
+        } catch (InterruptedException e) {
+            send(exchange, 500, "Interrupted");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Fake Nomad request failed", e);
+            send(exchange, 500, String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void count(String method, String path) {
+        String endpoint = path.startsWith("job/") ? "job/<id>" : path.startsWith("evaluation/") ? "evaluation/<id>" : path;
+        requests.computeIfAbsent(method + " /v1/" + endpoint, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    // ---- Jobs
+
+    private void register(HttpExchange exchange) throws IOException {
+        JsonNode body = mapper.readTree(exchange.getRequestBody());
+        Job job = mapper.treeToValue(body.get("Job"), Job.class);
+        String evalID;
+        synchronized (this) {
+            evalID = register(job);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("EvalID", evalID);
+        response.put("EvalCreateIndex", currentIndex());
+        response.put("JobModifyIndex", currentIndex());
+        sendJSON(exchange, response);
+    }
+
+    private void dispatch(HttpExchange exchange, String parentID) throws IOException {
+        JsonNode body = mapper.readTree(exchange.getRequestBody());
+        JobDispatchResponse response = new JobDispatchResponse();
+        synchronized (this) {
+            Job parent = jobs.get(parentID);
+            if (parent == null || parent.getParameterizedJob() == null) {
+                send(exchange, 400, "job '" + parentID + "' is not a parameterized job");
+                return;
+            }
+            Job child = mapper.treeToValue(mapper.valueToTree(parent), Job.class);
+            String childID = parentID + "/dispatch-" + System.currentTimeMillis() / 1000 + "-" + shortID();
+            child.setId(childID);
+            child.setName(childID);
+            child.setParentId(parentID);
+            child.setParameterizedJob(null);
+            Map<String, String> meta = new HashMap<>();
+            if (parent.getMeta() != null) {
+                meta.putAll(parent.getMeta());
+            }
+            JsonNode dispatchMeta = body.get("Meta");
+            if (dispatchMeta != null) {
+                dispatchMeta.fields().forEachRemaining(field -> meta.put(field.getKey(), field.getValue().asText()));
+            }
+            child.setMeta(meta);
+            response.setDispatchedJobId(childID);
+            response.setEvalId(register(child));
+        }
+        sendJSON(exchange, response);
+    }
+
+    /**
+     * Stores a job, and schedules the allocations of its task groups which
+     * don't have a live allocation yet.
+     */
+    private String register(Job job) {
+        Job previous = jobs.put(job.getId(), job);
+        job.setStatus(job.getParameterizedJob() != null ? "running" : "pending");
+        long index = nextIndex();
+        job.setCreateIndex(previous != null ? previous.getCreateIndex() : BigInteger.valueOf(index));
+        job.setModifyIndex(BigInteger.valueOf(index));
+        job.setJobModifyIndex(BigInteger.valueOf(index));
+
+        Evaluation evaluation = newEvaluation(job.getId(), "job-register");
+        if (job.getParameterizedJob() == null) {
+            List<String> groups = new ArrayList<>();
+            for (TaskGroup group : job.getTaskGroups()) {
+                groups.add(group.getName());
+            }
+            // Stop the allocations of the groups removed from the job
+            for (AllocationListStub alloc : allocations.values()) {
+                if (alloc.getJobId().equals(job.getId()) && !groups.contains(alloc.getTaskGroup()) && isLive(alloc)) {
+                    stop(alloc);
+                }
+            }
+            List<String> toPlace = new ArrayList<>();
+            for (String group : groups) {
+                if (!hasLiveAllocation(job.getId(), group)) {
+                    toPlace.add(group);
+                }
+            }
+            scheduler.schedule(() -> place(job, evaluation, toPlace), placementDelay, TimeUnit.MILLISECONDS);
+        } else {
+            evaluation.setStatus("complete");
+        }
+
+        Listener listener = this.listener;
+        if (listener != null && previous == null) {
+            listener.registered(job.getId());
+        }
+        return evaluation.getId();
+    }
+
+    private void deregister(HttpExchange exchange, String jobID) throws IOException {
+        String evalID;
+        synchronized (this) {
+            Job job = jobs.remove(jobID);
+            if (job == null) {
+                send(exchange, 404, "job not found");
+                return;
+            }
+            nextIndex();
+            for (AllocationListStub alloc : allocations.values()) {
+                if (alloc.getJobId().equals(jobID) && isLive(alloc)) {
+                    stop(alloc);
+                }
+            }
+            Evaluation evaluation = newEvaluation(jobID, "job-deregister");
+            evaluation.setStatus("complete");
+            evalID = evaluation.getId();
+        }
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.deregistered(jobID);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("EvalID", evalID);
+        response.put("EvalCreateIndex", currentIndex());
+        response.put("JobModifyIndex", currentIndex());
+        sendJSON(exchange, response);
+    }
+
+    private void getJob(HttpExchange exchange, String jobID) throws IOException {
+        byte[] body;
+        long index;
+        synchronized (this) {
+            Job job = jobs.get(jobID);
+            body = job != null ? mapper.writeValueAsBytes(job) : null;
+            index = this.index;
+        }
+        if (body == null) {
+            send(exchange, 404, "job not found");
+            return;
+        }
+        sendJSON(exchange, index, body);
+    }
+
+    private void listJobs(HttpExchange exchange, Map<String, String> query) throws IOException, InterruptedException {
+        String prefix = query.getOrDefault("prefix", "");
+        long index = await(query);
+        List<JobListStub> stubs = new ArrayList<>();
+        synchronized (this) {
+            for (Job job : jobs.values()) {
+                if (!job.getId().startsWith(prefix)) {
+                    continue;
+                }
+                JobListStub stub = new JobListStub();
+                stub.setId(job.getId());
+                stub.setName(job.getName());
+                stub.setParentId(job.getParentId());
+                stub.setType(job.getType());
+                stub.setStatus(job.getStatus());
+                stub.setCreateIndex(job.getCreateIndex());
+                stub.setModifyIndex(job.getModifyIndex());
+                stub.setJobModifyIndex(job.getJobModifyIndex());
+                stubs.add(stub);
+            }
+        }
+        sendJSON(exchange, index, stubs);
+    }
+
+    // ---- Allocations
+
+    private void listAllocations(HttpExchange exchange, Map<String, String> query) throws IOException, InterruptedException {
+        String prefix = query.getOrDefault("prefix", "");
+        long index = await(query);
+        byte[] body;
+        synchronized (this) {
+            List<AllocationListStub> stubs = new ArrayList<>();
+            for (AllocationListStub alloc : allocations.values()) {
+                if (alloc.getId().startsWith(prefix)) {
+                    stubs.add(alloc);
+                }
+            }
+            // Serialized while the allocations can't change
+            body = mapper.writeValueAsBytes(stubs);
+        }
+        sendJSON(exchange, index, body);
+    }
+
+    private void getJobAllocations(HttpExchange exchange, String jobID, Map<String, String> query)
+            throws IOException, InterruptedException {
+        long index = await(query);
+        byte[] body;
+        synchronized (this) {
+            List<AllocationListStub> stubs = new ArrayList<>();
+            for (AllocationListStub alloc : allocations.values()) {
+                if (alloc.getJobId().equals(jobID)) {
+                    stubs.add(alloc);
+                }
+            }
+            body = mapper.writeValueAsBytes(stubs);
+        }
+        sendJSON(exchange, index, body);
+    }
+
+    /**
+     * Places the task groups of a job, after the placement delay.
+     */
+    private synchronized void place(Job job, Evaluation evaluation, List<String> groups) {
+        if (jobs.get(job.getId()) != job) {
+            // Deregistered, or registered again, in the meantime
+            evaluation.setStatus("canceled");
+            nextIndex();
+            return;
+        }
+
+        Map<String, AllocationMetric> failed = new HashMap<>();
+        for (String group : groups) {
+            if (random.nextDouble() < placementFailureRate) {
+                AllocationMetric metric = new AllocationMetric();
+                metric.setNodesEvaluated(3);
+                metric.setNodesExhausted(3);
+                metric.setDimensionExhausted(Collections.singletonMap("memory", 3));
+                failed.put(group, metric);
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            AllocationListStub alloc = new AllocationListStub();
+            alloc.setId(UUID.randomUUID().toString());
+            alloc.setEvalId(evaluation.getId());
+            alloc.setName(job.getId() + "." + group + "[0]");
+            alloc.setNodeId("fake-node");
+            alloc.setJobId(job.getId());
+            alloc.setTaskGroup(group);
+            alloc.setDesiredStatus("run");
+            alloc.setClientStatus("pending");
+            alloc.setCreateTime(TimeUnit.MILLISECONDS.toNanos(now));
+            alloc.setModifyTime(TimeUnit.MILLISECONDS.toNanos(now));
+            allocations.put(alloc.getId(), alloc);
+
+            boolean fails = random.nextDouble() < taskFailureRate;
+            scheduler.schedule(() -> start(alloc, taskNames(job, group), fails), startDelay, TimeUnit.MILLISECONDS);
+        }
+
+        evaluation.setStatus("complete");
+        if (!failed.isEmpty()) {
+            evaluation.setFailedTgAllocs(failed);
+        }
+        job.setStatus("running");
+        long index = nextIndex();
+        for (AllocationListStub alloc : allocations.values()) {
+            if (alloc.getCreateIndex() == null) {
+                alloc.setCreateIndex(BigInteger.valueOf(index));
+                alloc.setModifyIndex(BigInteger.valueOf(index));
+            }
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            failed.keySet().forEach(group -> listener.failed(job.getId(), group));
+        }
+    }
+
+    /**
+     * Starts the tasks of an allocation, after the start delay.
+     */
+    private void start(AllocationListStub alloc, List<String> tasks, boolean fails) {
+        synchronized (this) {
+            if (!"pending".equals(alloc.getClientStatus())) {
+                // Stopped in the meantime
+                return;
+            }
+            Map<String, TaskState> states = new HashMap<>();
+            for (String task : tasks) {
+                TaskState state = new TaskState();
+                if (fails) {
+                    TaskEvent event = new TaskEvent();
+                    event.setType("Driver Failure");
+                    event.setDriverError("Failed to pull `fake/image`: not found");
+                    state.setState("dead");
+                    state.setFailed(true);
+                    state.setEvents(Collections.singletonList(event));
+                } else {
+                    state.setState("running");
+                    state.setEvents(Collections.emptyList());
+                }
+                states.put(task, state);
+            }
+            alloc.setTaskStates(states);
+            alloc.setClientStatus(fails ? "failed" : "running");
+            touch(alloc);
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            if (fails) {
+                listener.failed(alloc.getJobId(), alloc.getTaskGroup());
+            } else {
+                listener.running(alloc.getJobId(), alloc.getTaskGroup());
+            }
+        }
+    }
+
+    private void stop(AllocationListStub alloc) {
+        alloc.setDesiredStatus("stop");
+        if (isLive(alloc)) {
+            alloc.setClientStatus("complete");
+        }
+        touch(alloc);
+    }
+
+    private void touch(AllocationListStub alloc) {
+        alloc.setModifyIndex(BigInteger.valueOf(nextIndex()));
+        alloc.setModifyTime(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+    }
+
+    private boolean hasLiveAllocation(String jobID, String group) {
+        for (AllocationListStub alloc : allocations.values()) {
+            if (alloc.getJobId().equals(jobID) && alloc.getTaskGroup().equals(group) && isLive(alloc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLive(AllocationListStub alloc) {
+        return "pending".equals(alloc.getClientStatus()) || "running".equals(alloc.getClientStatus());
+    }
+
+    private static List<String> taskNames(Job job, String group) {
+        List<String> names = new ArrayList<>();
+        for (TaskGroup taskGroup : job.getTaskGroups()) {
+            if (taskGroup.getName().equals(group) && taskGroup.getTasks() != null) {
+                taskGroup.getTasks().forEach(task -> names.add(task.getName()));
+            }
+        }
+        return names;
+    }
+
+    // ---- Evaluations
+
+    private Evaluation newEvaluation(String jobID, String triggeredBy) {
+        Evaluation evaluation = new Evaluation();
+        evaluation.setId(UUID.randomUUID().toString());
+        evaluation.setJobId(jobID);
+        evaluation.setTriggeredBy(triggeredBy);
+        evaluation.setStatus("pending");
+        evaluation.setCreateIndex(BigInteger.valueOf(index));
+        evaluations.put(evaluation.getId(), evaluation);
+        return evaluation;
+    }
+
+    private void getEvaluation(HttpExchange exchange, String evalID, Map<String, String> query)
+            throws IOException, InterruptedException {
+        long index = await(query);
+        byte[] body;
+        synchronized (this) {
+            Evaluation evaluation = evaluations.get(evalID);
+            body = evaluation != null ? mapper.writeValueAsBytes(evaluation) : null;
+        }
+        if (body == null) {
+            send(exchange, 404, "eval not found");
+            return;
+        }
+        sendJSON(exchange, index, body);
+    }
+
+    private void getJobEvaluations(HttpExchange exchange, String jobID, Map<String, String> query)
+            throws IOException, InterruptedException {
+        long index = await(query);
+        byte[] body;
+        synchronized (this) {
+            List<Evaluation> list = new ArrayList<>();
+            for (Evaluation evaluation : evaluations.values()) {
+                if (evaluation.getJobId().equals(jobID)) {
+                    list.add(evaluation);
+                }
+            }
+            body = mapper.writeValueAsBytes(list);
+        }
+        sendJSON(exchange, index, body);
+    }
+
+    // ---- Blocking queries
+
+    private synchronized long nextIndex() {
+        index++;
+        notifyAll();
+        return index;
+    }
+
+    private synchronized long currentIndex() {
+        return index;
+    }
+
+    /**
+     * Waits until the index is greater than the one of the query, if any.
+     *
+     * @return the current index
+     */
+    private synchronized long await(Map<String, String> query) throws InterruptedException {
+        String requested = query.get("index");
+        if (requested == null) {
+            return index;
+        }
+        long minIndex = Long.parseLong(requested);
+        long deadline = System.currentTimeMillis() + Math.min(maxBlockingWait, parseWait(query.get("wait")));
+        long remaining;
+        while (index <= minIndex && (remaining = deadline - System.currentTimeMillis()) > 0 && !handlers.isShutdown()) {
+            wait(remaining);
+        }
+        return index;
+    }
+
+    private long parseWait(String wait) {
+        if (wait == null || wait.isEmpty()) {
+            return maxBlockingWait;
+        }
+        if (wait.endsWith("ms")) {
+            return Long.parseLong(wait.substring(0, wait.length() - 2));
+        }
+        long value = Long.parseLong(wait.substring(0, wait.length() - 1));
+        switch (wait.charAt(wait.length() - 1)) {
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(value);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(value);
+            default:
+                return TimeUnit.SECONDS.toMillis(value);
+        }
+    }
+
+    // ---- HTTP
+
+    private void sendJSON(HttpExchange exchange, Object value) throws IOException {
+        sendJSON(exchange, currentIndex(), value);
+    }
+
+    private void sendJSON(HttpExchange exchange, long index, Object value) throws IOException {
+        sendJSON(exchange, index, mapper.writeValueAsBytes(value));
+    }
+
+    private static void sendJSON(HttpExchange exchange, long index, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("X-Nomad-Index", Long.toString(index));
+        exchange.getResponseHeaders().set("X-Nomad-KnownLeader", "true");
+        exchange.getResponseHeaders().set("X-Nomad-LastContact", "0");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                parameters.put(decode(parameter), "");
+            } else {
+                parameters.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+            }
+        }
+        return parameters;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String shortID() {
+        return UUID.randomUUID().toString().substring(0, 8);
+    }
+}
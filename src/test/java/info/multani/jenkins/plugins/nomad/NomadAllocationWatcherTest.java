@@ -0,0 +1,98 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NomadAllocationWatcherTest {
+
+    private FakeNomadServer nomad;
+
+    private NomadCloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        nomad = new FakeNomadServer().setPlacementDelay(50).setStartDelay(100);
+        cloud = new NomadCloud("nomad");
+        cloud.setServerUrl(nomad.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        nomad.close();
+    }
+
+    @Test
+    public void runningAllocation() throws Exception {
+        CompletableFuture<AllocationListStub> allocation = cloud.getAllocationWatcher().watch("agent-1");
+        cloud.connect().getJobsApi().register(job("agent-1"));
+
+        AllocationListStub alloc = allocation.get(10, TimeUnit.SECONDS);
+        assertEquals("agent-1", alloc.getJobId());
+        assertEquals("running", alloc.getClientStatus());
+
+        // The allocations are followed through the cluster-wide query only
+        assertNull(nomad.getRequestCounts().get("GET /v1/job/<id>"));
+    }
+
+    @Test
+    public void jobsShareTheQuery() throws Exception {
+        CompletableFuture<AllocationListStub> first = cloud.getAllocationWatcher().watch("agent-3");
+        cloud.connect().getJobsApi().register(job("agent-3"));
+        first.get(10, TimeUnit.SECONDS);
+
+        // Watched while the query waits for the next change
+        CompletableFuture<AllocationListStub> second = cloud.getAllocationWatcher().watch("agent-4");
+        CompletableFuture<AllocationListStub> third = cloud.getAllocationWatcher().watch("agent-5");
+        cloud.connect().getJobsApi().register(job("agent-4"));
+        cloud.connect().getJobsApi().register(job("agent-5"));
+
+        assertEquals("agent-4", second.get(10, TimeUnit.SECONDS).getJobId());
+        assertEquals("agent-5", third.get(10, TimeUnit.SECONDS).getJobId());
+        assertNull(nomad.getRequestCounts().get("GET /v1/job/<id>"));
+    }
+
+    @Test
+    public void failedTask() throws Exception {
+        nomad.setTaskFailureRate(1);
+        CompletableFuture<AllocationListStub> allocation = cloud.getAllocationWatcher().watch("agent-2");
+        cloud.connect().getJobsApi().register(job("agent-2"));
+
+        try {
+            allocation.get(10, TimeUnit.SECONDS);
+            fail("The allocation should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NomadLaunchException);
+            assertEquals(NomadLaunchException.Reason.TASK_FAILED, ((NomadLaunchException) e.getCause()).getReason());
+        }
+    }
+
+    private static Job job(String id) {
+        Task task = new Task();
+        task.setName("jnlp");
+        task.setDriver("docker");
+        TaskGroup group = new TaskGroup();
+        group.setName("jnlp");
+        group.setCount(1);
+        group.setTasks(Collections.singletonList(task));
+        Job job = new Job();
+        job.setId(id);
+        job.setName(id);
+        job.setType("batch");
+        job.setTaskGroups(Collections.singletonList(group));
+        return job;
+    }
+}
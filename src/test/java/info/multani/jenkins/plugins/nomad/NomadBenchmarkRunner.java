@@ -0,0 +1,56 @@
+package info.multani.jenkins.plugins.nomad;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the {@link NomadBenchmarks} and the
+ * {@link NomadStandaloneBenchmarks}, and writes the results to
+ * {@code target/jmh-report.json} for the CI to keep track of.
+ *
+ * Each class sets its own number of forks: the benchmarks which need Jenkins
+ * run in the JVM of the test, next to the Jenkins started by the rule, the
+ * others in JVMs of their own. Only run them with the {@code benchmark}
+ * profile.
+ *
+ * <pre>
+ * mvn test -Pbenchmark
+ * </pre>
+ */
+public class NomadBenchmarkRunner {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("nomad.benchmark"));
+    }
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(NomadBenchmarks.class.getName() + "\\.")
+                .include(NomadStandaloneBenchmarks.class.getName() + "\\.")
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(2))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(2))
+                .timeout(TimeValue.minutes(1))
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,146 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import hudson.model.Label;
+import info.multani.jenkins.plugins.nomad.model.EnvVar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks of the code paths run for each agent: building its Nomad job and
+ * finding its template.
+ *
+ * They need a running Jenkins: they run in the JVM of
+ * {@link NomadBenchmarkRunner}, next to the Jenkins started by its rule. The
+ * others are in {@link NomadStandaloneBenchmarks}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(0)
+public class NomadBenchmarks {
+
+    /**
+     * A cloud with many templates, similar to a production controller.
+     */
+    @State(Scope.Benchmark)
+    public static class CloudState {
+
+        /**
+         * The number of templates of the cloud.
+         */
+        @Param({"10", "100", "500"})
+        public int templates;
+
+        NomadCloud cloud;
+
+        NomadJobTemplate template;
+
+        NomadSlave slave;
+
+        /**
+         * The labels requested by the queue, cycled through by the
+         * benchmarks.
+         */
+        Label[] labels;
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            cloud = new NomadCloud("benchmark-" + templates);
+            cloud.setServerUrl("http://127.0.0.1:4646");
+            cloud.setJenkinsUrl("http://jenkins.example.com/");
+            cloud.setDatacenters("dc1,dc2");
+
+            List<NomadJobTemplate> list = new ArrayList<>();
+            for (int i = 0; i < templates; i++) {
+                list.add(template(i));
+            }
+            cloud.setTemplates(list);
+            Jenkins.getInstance().clouds.add(cloud);
+
+            template = list.get(templates / 2);
+            slave = NomadSlave.builder().cloud(cloud).jobTemplate(template).build();
+
+            Random random = new Random(42);
+            labels = new Label[64];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = Label.get("pool-" + random.nextInt(templates));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Jenkins.getInstance().clouds.remove(cloud);
+        }
+
+        Label nextLabel() {
+            next = (next + 1) % labels.length;
+            return labels[next];
+        }
+
+        private static NomadJobTemplate template(int i) {
+            NomadJobTemplate template = new NomadJobTemplate();
+            template.setName("pool-" + i);
+            template.setLabel("pool-" + i + " linux docker java-8 size-" + (i % 4));
+            template.setInstanceCap(50);
+
+            List<TaskTemplate> tasks = new ArrayList<>();
+            TaskTemplate jnlp = TaskTemplate.defaultTask();
+            jnlp.setCommand("/usr/local/bin/jenkins-agent");
+            jnlp.setEnvVars(envVars("JNLP", 6));
+            jnlp.setResourcesCPU(500);
+            jnlp.setResourcesMemory(512);
+            tasks.add(jnlp);
+
+            TaskTemplate build = new TaskTemplate("build", "registry.example.com/builder:${BUILDER_TAG}", "cat",
+                    Arrays.asList("--name", "${computer.name}", "--secret", "${computer.jnlpmac}"));
+            build.setEnvVars(envVars("BUILD", 12));
+            build.setResourcesCPU(2000);
+            build.setResourcesMemory(4096);
+            tasks.add(build);
+
+            template.setTaskGroups(tasks);
+            template.setEnvVars(envVars("TEMPLATE", 4));
+            return template;
+        }
+
+        private static List<EnvVar> envVars(String prefix, int count) {
+            List<EnvVar> envVars = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                envVars.add(new EnvVar(prefix + "_" + i, "value-" + i));
+            }
+            return envVars;
+        }
+    }
+
+    @Benchmark
+    public Job buildJob(CloudState state) {
+        return new NomadJobTemplateBuilder(state.template).build(state.slave);
+    }
+
+    @Benchmark
+    public List<NomadJobTemplate> applyFilters(CloudState state) {
+        return NomadJobTemplateFilter.applyAll(state.cloud, state.cloud.getAllTemplates(), state.nextLabel());
+    }
+
+    @Benchmark
+    public NomadJobTemplate getTemplate(CloudState state) {
+        return state.cloud.getTemplate(state.nextLabel());
+    }
+}
@@ -0,0 +1,33 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Label;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class NomadCloudTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void addAndRemoveTemplate() {
+        NomadCloud cloud = new NomadCloud("nomad");
+        j.jenkins.clouds.add(cloud);
+        Label label = Label.get("java");
+        // Indexes the templates
+        assertNull(cloud.getTemplate(label));
+
+        NomadJobTemplate template = new NomadJobTemplate();
+        template.setName("java");
+        template.setLabel("java");
+        cloud.addTemplate(template);
+        assertSame(template, cloud.getTemplate(label));
+
+        cloud.removeTemplate(template);
+        assertNull(cloud.getTemplate(label));
+    }
+}
@@ -0,0 +1,84 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Task;
+import info.multani.jenkins.plugins.nomad.model.EnvVar;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class NomadCompiledJobTemplateTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void parameterizedJob() throws Exception {
+        NomadCloud cloud = cloud();
+        NomadJobTemplate template = template();
+        String agentName = "${NOMAD_META_" + NomadJobTemplateBuilder.AGENT_NAME_META + "}";
+        String secret = "${NOMAD_META_" + NomadJobTemplateBuilder.SECRET_META + "}";
+
+        Job job = template.buildParameterized(cloud);
+        assertEquals(Arrays.asList(NomadJobTemplateBuilder.AGENT_NAME_META, NomadJobTemplateBuilder.SECRET_META),
+                job.getParameterizedJob().getMetaRequired());
+        assertEquals("java", job.getId());
+        assertEquals("java", job.getMeta().get(NomadJobTemplateBuilder.TEMPLATE_META));
+
+        // The agent is filled in by Nomad from the dispatch meta
+        Task jnlp = job.getTaskGroups().get(0).getTasks().get(0);
+        assertEquals(agentName, jnlp.getEnv().get("JENKINS_AGENT_NAME"));
+        assertEquals(secret, jnlp.getEnv().get("JENKINS_SECRET"));
+        assertEquals("http://override.example.com/", jnlp.getEnv().get("JENKINS_URL"));
+        Task build = job.getTaskGroups().get(1).getTasks().get(0);
+        assertEquals(Arrays.asList("--agent=" + agentName, secret, "-v"), build.getConfig().get("args"));
+        assertEquals("value", build.getEnv().get("GLOBAL"));
+    }
+
+    @Test
+    public void compiledAgain() {
+        NomadCloud cloud = cloud();
+        NomadJobTemplate template = template();
+
+        NomadCompiledJobTemplate compiled = template.getCompiled(cloud);
+        assertSame(compiled, template.getCompiled(cloud));
+
+        cloud.setJenkinsTunnel("jenkins.example.com:50000");
+        NomadCompiledJobTemplate recompiled = template.getCompiled(cloud);
+        assertNotSame(compiled, recompiled);
+
+        template.setLabel("other");
+        assertNotSame(recompiled, template.getCompiled(cloud));
+    }
+
+    private NomadCloud cloud() {
+        NomadCloud cloud = new NomadCloud("nomad");
+        cloud.setServerUrl("http://127.0.0.1:4646");
+        cloud.setJenkinsUrl("http://jenkins.example.com/");
+        cloud.setDatacenters("dc1,dc2");
+        j.jenkins.clouds.add(cloud);
+        return cloud;
+    }
+
+    private static NomadJobTemplate template() {
+        TaskTemplate jnlp = TaskTemplate.defaultTask();
+        jnlp.setEnvVars(Collections.singletonList(new EnvVar("JENKINS_URL", "http://override.example.com/")));
+        TaskTemplate build = new TaskTemplate("build", "builder:latest", "cat",
+                Arrays.asList("--agent=${computer.name}", "${computer.jnlpmac}", "-v"));
+        build.setResourcesCPU(1000);
+        build.setDownloadAgentJar(true);
+
+        NomadJobTemplate template = new NomadJobTemplate();
+        template.setName("java");
+        template.setLabel("java linux");
+        template.setTaskGroups(Arrays.asList(jnlp, build));
+        template.setEnvVars(Collections.singletonList(new EnvVar("GLOBAL", "value")));
+        return template;
+    }
+}
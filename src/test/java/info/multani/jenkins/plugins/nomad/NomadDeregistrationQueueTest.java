@@ -0,0 +1,92 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NomadDeregistrationQueueTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeNomadServer nomad;
+
+    private NomadCloud cloud;
+
+    @Before
+    public void setUp() throws Exception {
+        nomad = new FakeNomadServer();
+        cloud = new NomadCloud("nomad");
+        cloud.setServerUrl(nomad.getUrl());
+        j.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        nomad.close();
+    }
+
+    @Test
+    public void deregisterOnce() throws Exception {
+        cloud.connect().getJobsApi().register(job("agent-1"));
+        assertEquals(Collections.singletonList("agent-1"), nomad.getJobIDs());
+
+        NomadDeregistrationQueue queue = cloud.getDeregistrationQueue();
+        CompletableFuture<Void> first = queue.deregister("agent-1");
+        CompletableFuture<Void> second = queue.deregister("agent-1");
+        assertSame(first, second);
+
+        first.get(10, TimeUnit.SECONDS);
+        assertTrue(nomad.getJobIDs().isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void unknownJob() throws Exception {
+        // Nomad doesn't know the job: there's nothing left to deregister
+        cloud.getDeregistrationQueue().deregister("unknown").get(10, TimeUnit.SECONDS);
+        assertEquals(0, cloud.getDeregistrationQueue().size());
+    }
+
+    @Test
+    public void sharedWithNewCloud() throws Exception {
+        NomadDeregistrationQueue queue = cloud.getDeregistrationQueue();
+
+        // Saving the configuration replaces the cloud
+        NomadCloud replacement = new NomadCloud("nomad");
+        replacement.setServerUrl(nomad.getUrl());
+        j.jenkins.clouds.replace(cloud, replacement);
+        assertSame(queue, replacement.getDeregistrationQueue());
+
+        replacement.connect().getJobsApi().register(job("agent-1"));
+        queue.deregister("agent-1").get(10, TimeUnit.SECONDS);
+        assertTrue(nomad.getJobIDs().isEmpty());
+    }
+
+    private static Job job(String id) {
+        Task task = new Task();
+        task.setName("jnlp");
+        task.setDriver("docker");
+        TaskGroup group = new TaskGroup();
+        group.setName("jnlp");
+        group.setTasks(Collections.singletonList(task));
+        Job job = new Job();
+        job.setId(id);
+        job.setName(id);
+        job.setType("batch");
+        job.setTaskGroups(Collections.singletonList(group));
+        return job;
+    }
+}
@@ -0,0 +1,152 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Task;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NomadImageWarmerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeNomadServer nomad;
+
+    private NomadCloud cloud;
+
+    private NomadJobTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        nomad = new FakeNomadServer();
+        template = new NomadJobTemplate();
+        template.setName("java");
+        template.setLabel("java");
+        template.setTaskGroups(Arrays.asList(
+                new TaskTemplate("jnlp", "jenkins/jnlp-slave:alpine"),
+                new TaskTemplate("build", "maven:3")));
+
+        cloud = new NomadCloud("nomad");
+        cloud.setServerUrl(nomad.getUrl());
+        cloud.setJenkinsUrl("http://jenkins.example.com/");
+        cloud.setDatacenters("dc1");
+        cloud.setWarmImages(true);
+        cloud.setTemplates(Collections.singletonList(template));
+        j.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        nomad.close();
+    }
+
+    @Test
+    public void warmImages() throws Exception {
+        NomadImageWarmer warmer = new NomadImageWarmer();
+        warmer.update(cloud);
+
+        String jobID = NomadImageWarmer.jobID(cloud, template);
+        assertTrue(jobID.startsWith(NomadImageWarmer.JOB_PREFIX));
+        assertTrue(jobID.endsWith("-java"));
+        assertEquals(Collections.singletonList(jobID), nomad.getJobIDs());
+        Job job = cloud.connect().getJobsApi().info(jobID).getValue();
+        assertEquals("system", job.getType());
+        assertEquals(Integer.valueOf(0), job.getTaskGroups().get(0).getRestartPolicy().getAttempts());
+        for (Task task : job.getTaskGroups().get(0).getTasks()) {
+            // The images are pulled, but never run
+            assertNotNull(task.getConfig().get("entrypoint"));
+        }
+        assertTrue(job.getPriority() < 50);
+        assertEquals(Collections.singletonList("dc1"), job.getDatacenters());
+        assertEquals("http://jenkins.example.com/", job.getMeta().get(NomadImageWarmer.WARMER_META));
+        assertEquals(Arrays.asList("jenkins/jnlp-slave:alpine", "maven:3"), images(job));
+
+        // Unchanged: not registered again, even after a restart
+        warmer.update(cloud);
+        new NomadImageWarmer().update(cloud);
+        assertEquals(1, registrations());
+
+        // A new image is pulled
+        template.setTaskGroups(Arrays.asList(
+                new TaskTemplate("jnlp", "jenkins/jnlp-slave:alpine"),
+                new TaskTemplate("build", "maven:3.6")));
+        warmer.update(cloud);
+        job = cloud.connect().getJobsApi().info(jobID).getValue();
+        assertEquals(Arrays.asList("jenkins/jnlp-slave:alpine", "maven:3.6"), images(job));
+
+        // No longer warmed
+        cloud.setWarmImages(false);
+        warmer.update(cloud);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!nomad.getJobIDs().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(nomad.getJobIDs().isEmpty());
+    }
+
+    @Test
+    public void scopedJobs() throws Exception {
+        NomadCloud other = new NomadCloud("other");
+        other.setServerUrl(nomad.getUrl());
+        other.setJenkinsUrl("http://jenkins.example.com/");
+        other.setWarmImages(true);
+        other.setTemplates(Collections.singletonList(template));
+        j.jenkins.clouds.add(other);
+
+        // Registered before the jobs were scoped
+        Job legacy = NomadImageWarmer.buildJob(cloud, template);
+        legacy.setId(NomadImageWarmer.JOB_PREFIX + "java");
+        legacy.setName(legacy.getId());
+        cloud.connect().getJobsApi().register(legacy);
+
+        NomadImageWarmer warmer = new NomadImageWarmer();
+        warmer.update(cloud);
+        warmer.update(other);
+
+        String jobID = NomadImageWarmer.jobID(cloud, template);
+        String otherJobID = NomadImageWarmer.jobID(other, template);
+        assertNotEquals(jobID, otherJobID);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (nomad.getJobIDs().size() > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(jobID, otherJobID)), new HashSet<>(nomad.getJobIDs()));
+
+        // Each cloud only removes its own jobs
+        other.setWarmImages(false);
+        warmer.update(cloud);
+        warmer.update(other);
+        deadline = System.currentTimeMillis() + 10000;
+        while (nomad.getJobIDs().size() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(Collections.singletonList(jobID), nomad.getJobIDs());
+    }
+
+    private long registrations() {
+        Map<String, Long> counts = nomad.getRequestCounts();
+        return counts.getOrDefault("PUT /v1/jobs", 0L) + counts.getOrDefault("POST /v1/jobs", 0L);
+    }
+
+    private static List<String> images(Job job) {
+        List<String> images = new ArrayList<>();
+        for (Task task : job.getTaskGroups().get(0).getTasks()) {
+            images.add((String) task.getConfig().get("image"));
+        }
+        return images;
+    }
+}
@@ -0,0 +1,110 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NomadJobCounterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private NomadCloud cloud;
+
+    private NomadJobTemplate java;
+
+    private NomadJobTemplate python;
+
+    @Before
+    public void setUp() {
+        java = template("java");
+        python = template("python");
+        cloud = new NomadCloud("nomad");
+        cloud.setTemplates(Arrays.asList(java, python));
+        j.jenkins.clouds.add(cloud);
+    }
+
+    @Test
+    public void containerCap() {
+        cloud.setContainerCapStr("2");
+        NomadJobCounter counter = new NomadJobCounter(cloud);
+        assertTrue(counter.tryReserve(java));
+        assertTrue(counter.tryReserve(python));
+        assertFalse(counter.tryReserve(java));
+
+        counter.release(python);
+        assertTrue(counter.tryReserve(java));
+        assertFalse(counter.tryReserve(python));
+    }
+
+    @Test
+    public void instanceCap() {
+        java.setInstanceCap(1);
+        NomadJobCounter counter = new NomadJobCounter(cloud);
+        assertTrue(counter.tryReserve(java));
+        assertFalse(counter.tryReserve(java));
+        // The cap of a template doesn't hold back the others
+        assertTrue(counter.tryReserve(python));
+
+        counter.release(java);
+        assertTrue(counter.tryReserve(java));
+    }
+
+    @Test
+    public void releaseWithoutTemplate() {
+        cloud.setContainerCapStr("1");
+        java.setInstanceCap(1);
+        NomadJobCounter counter = new NomadJobCounter(cloud);
+        assertTrue(counter.tryReserve(java));
+
+        // Only the total is released
+        counter.release(null);
+        assertFalse(counter.tryReserve(java));
+        assertTrue(counter.tryReserve(python));
+    }
+
+    @Test
+    public void seedFromAgents() throws Exception {
+        cloud.setContainerCapStr("3");
+        java.setInstanceCap(2);
+        j.jenkins.addNode(agent(cloud, java));
+        j.jenkins.addNode(agent(cloud, java));
+        // The agents of another cloud don't count
+        NomadCloud other = new NomadCloud("other");
+        j.jenkins.clouds.add(other);
+        j.jenkins.addNode(agent(other, java));
+
+        NomadJobCounter counter = new NomadJobCounter(cloud);
+        assertFalse(counter.tryReserve(java));
+        assertTrue(counter.tryReserve(python));
+        assertFalse(counter.tryReserve(python));
+
+        // The agents known from the start are released as well
+        counter.release(java);
+        assertTrue(counter.tryReserve(java));
+    }
+
+    private static NomadJobTemplate template(String name) {
+        NomadJobTemplate template = new NomadJobTemplate();
+        template.setName(name);
+        template.setLabel(name);
+        return template;
+    }
+
+    private static NomadSlave agent(NomadCloud cloud, NomadJobTemplate template) throws Exception {
+        // Never launched
+        return NomadSlave.builder()
+                .cloud(cloud)
+                .jobTemplate(template)
+                .computerLauncher(new JNLPLauncher())
+                .retentionStrategy(RetentionStrategy.NOOP)
+                .build();
+    }
+}
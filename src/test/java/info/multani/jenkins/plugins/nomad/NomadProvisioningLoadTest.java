@@ -0,0 +1,239 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives the provisioning of Nomad agents with a stream of simulated queue
+ * items against a {@link FakeNomadServer}, and reports the throughput and the
+ * latency percentiles in its log.
+ *
+ * Each tick, like the node provisioner, the cloud is asked for an agent per
+ * item still waiting. An item is served once an agent's allocation is
+ * running; the agent is then removed, as no real agent ever connects.
+ *
+ * The test only runs when asked to, and is configured through system
+ * properties:
+ *
+ * <pre>
+ * mvn test -Dtest=NomadProvisioningLoadTest -Dnomad.loadTest=true \
+ *     -Dnomad.loadTest.items=500 -Dnomad.loadTest.startDelay=2000
+ * </pre>
+ */
+public class NomadProvisioningLoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger(NomadProvisioningLoadTest.class.getName());
+
+    private static final String PREFIX = "nomad.loadTest";
+
+    /**
+     * Number of queue items to serve.
+     */
+    private static final int ITEMS = Integer.getInteger(PREFIX + ".items", 300);
+
+    /**
+     * Time over which the items arrive in the queue, in milliseconds.
+     */
+    private static final long ARRIVAL_PERIOD = Long.getLong(PREFIX + ".arrivalPeriod", 10000);
+
+    /**
+     * Interval between two provisioning rounds, in milliseconds.
+     */
+    private static final long PROVISIONING_INTERVAL = Long.getLong(PREFIX + ".provisioningInterval", 100);
+
+    private static final long PLACEMENT_DELAY = Long.getLong(PREFIX + ".placementDelay", 50);
+
+    private static final long START_DELAY = Long.getLong(PREFIX + ".startDelay", 500);
+
+    private static final double PLACEMENT_FAILURE_RATE = Double.parseDouble(System.getProperty(PREFIX + ".placementFailureRate", "0"));
+
+    private static final double TASK_FAILURE_RATE = Double.parseDouble(System.getProperty(PREFIX + ".taskFailureRate", "0.02"));
+
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(Long.getLong(PREFIX + ".timeoutMinutes", 10));
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue("Run with -D" + PREFIX + "=true", Boolean.getBoolean(PREFIX));
+    }
+
+    @Test
+    public void provisionUnderLoad() throws Exception {
+        try (FakeNomadServer nomad = new FakeNomadServer()) {
+            nomad.setPlacementDelay(PLACEMENT_DELAY)
+                    .setStartDelay(START_DELAY)
+                    .setPlacementFailureRate(PLACEMENT_FAILURE_RATE)
+                    .setTaskFailureRate(TASK_FAILURE_RATE);
+
+            NomadJobTemplate template = new NomadJobTemplate();
+            template.setName("load");
+            template.setLabel("load");
+            template.setTaskGroups(Collections.singletonList(TaskTemplate.defaultTask()));
+
+            NomadCloud cloud = new NomadCloud("nomad");
+            cloud.setServerUrl(nomad.getUrl());
+            cloud.setJenkinsUrl(j.getURL().toString());
+            cloud.setTemplates(Collections.singletonList(template));
+            j.jenkins.clouds.add(cloud);
+
+            Label label = Label.get("load");
+            SimulatedQueue queue = new SimulatedQueue();
+            nomad.setListener(queue);
+
+            long start = System.currentTimeMillis();
+            int agents = 0;
+            while (queue.served() < ITEMS) {
+                long now = System.currentTimeMillis();
+                if (now - start > TIMEOUT) {
+                    break;
+                }
+                long arrived = Math.min(ITEMS, ITEMS * (now - start) / Math.max(1, ARRIVAL_PERIOD) + 1);
+                queue.arrive((int) arrived, now);
+
+                Collection<NodeProvisioner.PlannedNode> planned = cloud.provision(label, queue.waiting());
+                for (NodeProvisioner.PlannedNode node : planned) {
+                    queue.add(node);
+                }
+                agents += planned.size();
+                Thread.sleep(PROVISIONING_INTERVAL);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            report(queue, agents, elapsed, nomad);
+            assertEquals("Not all the items were served in time", ITEMS, queue.served());
+        }
+    }
+
+    private static void report(SimulatedQueue queue, int agents, long elapsed, FakeNomadServer nomad) {
+        List<Long> latencies = queue.latencies();
+        Collections.sort(latencies);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%n=== Nomad provisioning load test ===%n"));
+        report.append(String.format("items: %d served / %d, agents planned: %d, failed allocations: %d%n",
+                latencies.size(), ITEMS, agents, queue.failures()));
+        report.append(String.format("elapsed: %d ms, throughput: %.1f items/s%n",
+                elapsed, latencies.size() * 1000.0 / Math.max(1, elapsed)));
+        report.append(String.format("queue to running (ms): p50=%d p90=%d p99=%d max=%d%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90),
+                percentile(latencies, 0.99), percentile(latencies, 1)));
+        report.append(String.format("requests: %s%n", new TreeMap<>(nomad.getRequestCounts())));
+        report.append(String.format("stages: %s%n", NomadMetrics.toJSON().toString(2)));
+        LOGGER.log(Level.INFO, report.toString());
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    /**
+     * The simulated build queue: items are served in order, as the agents
+     * become available.
+     */
+    private static class SimulatedQueue implements FakeNomadServer.Listener {
+
+        private final Deque<Long> waiting = new ArrayDeque<>();
+
+        private final List<Long> latencies = new ArrayList<>();
+
+        private final ConcurrentMap<String, Boolean> failed = new ConcurrentHashMap<>();
+
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+
+        private int arrived;
+
+        synchronized void arrive(int total, long now) {
+            for (; arrived < total; arrived++) {
+                waiting.add(now);
+            }
+        }
+
+        synchronized int waiting() {
+            return waiting.size();
+        }
+
+        synchronized int served() {
+            return latencies.size();
+        }
+
+        synchronized List<Long> latencies() {
+            return new ArrayList<>(latencies);
+        }
+
+        int failures() {
+            return failed.size();
+        }
+
+        /**
+         * Adds a planned agent to Jenkins, once it's ready.
+         */
+        void add(NodeProvisioner.PlannedNode planned) {
+            executor.submit(() -> {
+                Node node = planned.future.get();
+                Jenkins.getInstance().addNode(node);
+                return null;
+            });
+        }
+
+        @Override
+        public void registered(String jobID) {
+        }
+
+        @Override
+        public void running(String jobID, String taskGroup) {
+            synchronized (this) {
+                Long since = waiting.poll();
+                if (since != null) {
+                    latencies.add(System.currentTimeMillis() - since);
+                }
+            }
+            // No agent will ever connect: remove the node, which terminates
+            // the agent once the launcher notices it's gone.
+            executor.submit(() -> {
+                Node node = Jenkins.getInstance().getNode(jobID);
+                if (node != null) {
+                    Jenkins.getInstance().removeNode(node);
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public void failed(String jobID, String taskGroup) {
+            failed.put(jobID + "/" + taskGroup, true);
+        }
+
+        @Override
+        public void deregistered(String jobID) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package info.multani.jenkins.plugins.nomad;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NomadSharedJobTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeNomadServer nomad;
+
+    private NomadCloud cloud;
+
+    private NomadJobTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        nomad = new FakeNomadServer().setStartDelay(60000);
+        template = new NomadJobTemplate();
+        template.setName("java");
+        cloud = new NomadCloud("nomad");
+        cloud.setServerUrl(nomad.getUrl());
+        j.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        nomad.close();
+    }
+
+    @Test
+    public void jobIDs() {
+        assertEquals("java", NomadSharedJob.jobID(template, 0));
+        assertEquals("java-1", NomadSharedJob.jobID(template, 1));
+        assertEquals("java-2", NomadSharedJob.jobID(template, 2));
+    }
+
+    @Test
+    public void agentGroups() throws Exception {
+        NomadSharedJob sharedJob = cloud.getSharedJob(NomadSharedJob.jobID(template, 0));
+        Job agentJob = job("agent-1");
+        CompletableFuture<String> added = sharedJob.tryAdd("agent-1", agentJob);
+        assertNotNull(added);
+
+        TaskGroup group = agentJob.getTaskGroups().get(0);
+        assertEquals(NomadSharedJob.groupName("agent-1", "jnlp"), group.getName());
+        assertEquals(Integer.valueOf(1), group.getCount());
+        assertEquals("agent-1", group.getMeta().get(NomadSharedJob.AGENT_META));
+
+        assertNotNull(added.get(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("java"), nomad.getJobIDs());
+
+        // The job goes away with its last agent
+        sharedJob.remove("agent-1").get(10, TimeUnit.SECONDS);
+        assertTrue(nomad.getJobIDs().isEmpty());
+    }
+
+    @Test
+    public void shardPacking() throws Exception {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < NomadSharedJob.MAX_AGENTS; i++) {
+            assertEquals("java", add("agent-" + i, futures));
+        }
+
+        // The first shared job is full, but still updates its own agents
+        NomadSharedJob first = cloud.getSharedJob(NomadSharedJob.jobID(template, 0));
+        assertNull(first.tryAdd("agent-next", job("agent-next")));
+        assertNotNull(first.tryAdd("agent-0", job("agent-0")));
+        assertEquals("java-1", add("agent-next", futures));
+
+        for (CompletableFuture<String> future : futures) {
+            assertNotNull(future.get(10, TimeUnit.SECONDS));
+        }
+        assertTrue(nomad.getJobIDs().contains("java"));
+        assertTrue(nomad.getJobIDs().contains("java-1"));
+
+        // Removing an agent makes room in the first shared job again
+        first.remove("agent-1").get(10, TimeUnit.SECONDS);
+        assertEquals("java", add("agent-last", futures));
+        assertFalse(nomad.getJobIDs().contains("java-2"));
+    }
+
+    /**
+     * Adds an agent to the first shared job with room left, as
+     * {@link NomadLauncher} does.
+     *
+     * @return the ID of the shared job the agent was added to.
+     */
+    private String add(String agentName, List<CompletableFuture<String>> futures) {
+        for (int shard = 0; ; shard++) {
+            NomadSharedJob sharedJob = cloud.getSharedJob(NomadSharedJob.jobID(template, shard));
+            CompletableFuture<String> added = sharedJob.tryAdd(agentName, job(agentName));
+            if (added != null) {
+                futures.add(added);
+                return sharedJob.getJobID();
+            }
+        }
+    }
+
+    private static Job job(String id) {
+        Task task = new Task();
+        task.setName("jnlp");
+        task.setDriver("docker");
+        TaskGroup group = new TaskGroup();
+        group.setName("jnlp");
+        group.setTasks(Collections.singletonList(task));
+        Job job = new Job();
+        job.setId(id);
+        job.setName(id);
+        job.setType("batch");
+        job.setTaskGroups(Collections.singletonList(group));
+        return job;
+    }
+}
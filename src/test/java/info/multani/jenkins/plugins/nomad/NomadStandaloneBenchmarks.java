@@ -0,0 +1,84 @@
+package info.multani.jenkins.plugins.nomad;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of the code paths which don't need a running Jenkins.
+ *
+ * They run in JVMs of their own, forked by {@link NomadBenchmarkRunner}, so
+ * the results don't depend on the state of the JVM of the tests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class NomadStandaloneBenchmarks {
+
+    @State(Scope.Benchmark)
+    public static class TemplateState {
+
+        NomadJobTemplate template;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            template = new NomadJobTemplate();
+            template.setName("pool-42");
+            template.setLabel("pool-42 linux docker java-8 size-2 \"region eu\"");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class HistoryState {
+
+        /**
+         * An hour of arrivals, as kept by {@link NomadPredictiveScaler}.
+         */
+        ArrivalHistory history;
+
+        long now;
+
+        /**
+         * Starts each iteration from the same history, whatever the number
+         * of arrivals recorded by the previous one.
+         */
+        @Setup(Level.Iteration)
+        public void setUp() {
+            history = new ArrivalHistory(60);
+            now = System.currentTimeMillis();
+            for (int minute = 60; minute > 0; minute--) {
+                for (int i = 0; i < minute % 7; i++) {
+                    history.record(now - minute * ArrivalHistory.BUCKET_MILLIS);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public String substituteEnv() {
+        return NomadJobTemplateBuilder.substituteEnv("registry.example.com/builder:${BUILDER_TAG}");
+    }
+
+    @Benchmark
+    public Map<String, String> getLabelsMap(TemplateState state) {
+        return state.template.getLabelsMap();
+    }
+
+    @Benchmark
+    public void recordArrival(HistoryState state) {
+        state.history.record(state.now);
+    }
+
+    @Benchmark
+    public double forecastArrivals(HistoryState state) {
+        return state.history.forecast(state.now, 5);
+    }
+}
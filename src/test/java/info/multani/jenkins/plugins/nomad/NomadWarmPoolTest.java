@@ -0,0 +1,73 @@
+package info.multani.jenkins.plugins.nomad;
+
+import hudson.model.Node;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+
+public class NomadWarmPoolTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeNomadServer nomad;
+
+    private NomadCloud cloud;
+
+    private NomadJobTemplate template;
+
+    @Before
+    public void setUp() throws Exception {
+        // The agents are never running, let alone connected
+        nomad = new FakeNomadServer().setStartDelay(60000);
+        template = new NomadJobTemplate();
+        template.setName("java");
+        template.setLabel("java");
+        template.setMinIdle(2);
+        template.setTaskGroups(Collections.singletonList(new TaskTemplate("jnlp", "jenkins/jnlp-slave:alpine")));
+
+        cloud = new NomadCloud("nomad");
+        cloud.setServerUrl(nomad.getUrl());
+        cloud.setJenkinsUrl("http://jenkins.example.com/");
+        cloud.setTemplates(Collections.singletonList(template));
+        j.jenkins.clouds.add(cloud);
+    }
+
+    @After
+    public void tearDown() {
+        nomad.close();
+    }
+
+    @Test
+    public void startingAgentsAreCounted() throws Exception {
+        NomadWarmPool.replenish(cloud, template, 2);
+        assertEquals(2, countAgents());
+
+        // Wait for the launches to be under way: the agents are offline, and
+        // no longer connecting
+        long deadline = System.currentTimeMillis() + 10000;
+        while (nomad.getJobIDs().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(2, nomad.getJobIDs().size());
+
+        NomadWarmPool.replenish(cloud, template, 2);
+        assertEquals(2, countAgents());
+        assertEquals(2, nomad.getJobIDs().size());
+    }
+
+    private int countAgents() {
+        int count = 0;
+        for (Node node : j.jenkins.getNodes()) {
+            if (node instanceof NomadSlave) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
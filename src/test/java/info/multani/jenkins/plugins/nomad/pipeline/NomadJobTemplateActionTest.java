@@ -0,0 +1,45 @@
+package info.multani.jenkins.plugins.nomad.pipeline;
+
+import java.util.Arrays;
+import jenkins.model.Jenkins;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NomadJobTemplateActionTest {
+
+    @Test
+    public void pushAndPop() {
+        NomadJobTemplateAction action = new NomadJobTemplateAction();
+        action.push("parent");
+        action.push("child");
+        assertEquals(Arrays.asList("parent", "child"), action.getParentTemplateList());
+        assertEquals("parent child", action.getParentTemplates());
+
+        assertEquals("child", action.popItem());
+        assertEquals("parent", action.popItem());
+        assertNull(action.popItem());
+        assertEquals("", action.getParentTemplates());
+    }
+
+    @Test
+    public void savedStack() {
+        NomadJobTemplateAction action = new NomadJobTemplateAction();
+        action.push("parent");
+        action.push("child");
+        NomadJobTemplateAction loaded = (NomadJobTemplateAction) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(action));
+        assertEquals(Arrays.asList("parent", "child"), loaded.getParentTemplateList());
+    }
+
+    @Test
+    public void legacyStack() {
+        // As saved by the previous versions
+        String xml = "<" + NomadJobTemplateAction.class.getName() + ">"
+                + "<stack><string>parent</string><string>child</string></stack>"
+                + "</" + NomadJobTemplateAction.class.getName() + ">";
+        NomadJobTemplateAction loaded = (NomadJobTemplateAction) Jenkins.XSTREAM2.fromXML(xml);
+        assertEquals(Arrays.asList("parent", "child"), loaded.getParentTemplateList());
+        assertEquals("child", loaded.popItem());
+    }
+}
@@ -0,0 +1,86 @@
+package info.multani.jenkins.plugins.nomad.pipeline;
+
+import info.multani.jenkins.plugins.nomad.NomadCloud;
+import info.multani.jenkins.plugins.nomad.NomadJobTemplate;
+import info.multani.jenkins.plugins.nomad.TaskTemplate;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NomadJobTemplateMapTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void sameSpecSameDigest() {
+        assertEquals(NomadJobTemplateStepExecution.digest(template("java:8")),
+                NomadJobTemplateStepExecution.digest(template("java:8")));
+        assertNotEquals(NomadJobTemplateStepExecution.digest(template("java:8")),
+                NomadJobTemplateStepExecution.digest(template("java:11")));
+
+        NomadJobTemplate shared = template("java:8");
+        shared.setJobMode(NomadJobTemplate.JobMode.SHARED_JOB);
+        assertNotEquals(NomadJobTemplateStepExecution.digest(template("java:8")),
+                NomadJobTemplateStepExecution.digest(shared));
+    }
+
+    @Test
+    public void sharedTemplate() {
+        NomadCloud cloud = new NomadCloud("nomad");
+        j.jenkins.clouds.add(cloud);
+        NomadJobTemplateMap map = NomadJobTemplateMap.get();
+
+        NomadJobTemplate first = map.acquireTemplate(cloud, template("java:8"));
+        NomadJobTemplate second = map.acquireTemplate(cloud, template("java:8"));
+        assertSame(first, second);
+        assertEquals(1, map.getTemplates(cloud).size());
+
+        assertFalse(map.releaseTemplate(cloud, first));
+        assertFalse(map.removeTemplateIfUnused(cloud, first));
+        assertTrue(map.releaseTemplate(cloud, second));
+
+        // Used again before being removed
+        assertSame(first, map.acquireTemplate(cloud, template("java:8")));
+        assertFalse(map.removeTemplateIfUnused(cloud, first));
+
+        assertTrue(map.releaseTemplate(cloud, first));
+        assertTrue(map.removeTemplateIfUnused(cloud, first));
+        assertTrue(map.getTemplates(cloud).isEmpty());
+    }
+
+    @Test
+    public void savedTemplates() {
+        NomadCloud cloud = new NomadCloud("nomad");
+        j.jenkins.clouds.add(cloud);
+        NomadJobTemplate template = NomadJobTemplateMap.get().acquireTemplate(cloud, template("java:8"));
+        NomadJobTemplateMap.get().save();
+
+        // As after a restart of Jenkins
+        NomadJobTemplateMap loaded = new NomadJobTemplateMap();
+        loaded.load();
+        assertEquals(1, loaded.getTemplates(cloud).size());
+        NomadJobTemplate restored = loaded.getTemplates(cloud).get(0);
+        assertEquals(template.getName(), restored.getName());
+        assertEquals("java:8", restored.getTaskGroups().get(0).getImage());
+
+        // The resumed pipeline uses the loaded template
+        assertSame(restored, loaded.acquireTemplate(cloud, template("java:8")));
+        assertFalse(loaded.removeTemplateIfUnused(cloud, restored));
+    }
+
+    private static NomadJobTemplate template(String image) {
+        NomadJobTemplate template = new NomadJobTemplate();
+        template.setLabel("java");
+        template.setTaskGroups(Collections.singletonList(new TaskTemplate("jnlp", image, "", Collections.emptyList())));
+        template.setName("java-" + NomadJobTemplateStepExecution.digest(template));
+        return template;
+    }
+}